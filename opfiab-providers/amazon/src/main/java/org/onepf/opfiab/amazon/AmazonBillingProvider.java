@@ -33,6 +33,8 @@ import com.amazon.device.iap.model.PurchaseUpdatesResponse;
 import com.amazon.device.iap.model.Receipt;
 
 import org.json.JSONException;
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventSubscriber;
 import org.onepf.opfiab.billing.BaseBillingProvider;
 import org.onepf.opfiab.model.BillingProviderInfo;
 import org.onepf.opfiab.model.billing.Purchase;
@@ -56,6 +58,7 @@ import java.util.Set;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 import static android.Manifest.permission.ACCESS_NETWORK_STATE;
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.PROVIDER;
 import static org.onepf.opfiab.model.event.billing.Status.ITEM_ALREADY_OWNED;
 import static org.onepf.opfiab.model.event.billing.Status.ITEM_UNAVAILABLE;
 import static org.onepf.opfiab.model.event.billing.Status.SERVICE_UNAVAILABLE;
@@ -64,7 +67,8 @@ import static org.onepf.opfiab.model.event.billing.Status.UNAUTHORISED;
 import static org.onepf.opfiab.model.event.billing.Status.UNKNOWN_ERROR;
 
 @SuppressWarnings("PMD.GodClass")
-public class AmazonBillingProvider extends BaseBillingProvider<SkuResolver, PurchaseVerifier> {
+public class AmazonBillingProvider extends BaseBillingProvider<SkuResolver, PurchaseVerifier>
+        implements EventSubscriber {
 
     protected static final String NAME = "Amazon";
     protected static final String INSTALLER = "com.amazon.venezia";
@@ -145,6 +149,33 @@ public class AmazonBillingProvider extends BaseBillingProvider<SkuResolver, Purc
         return UNKNOWN_ERROR;
     }
 
+    @NonNull
+    @Override
+    public Collection<EventHandler<?>> getEventHandlers() {
+        return Arrays.<EventHandler<?>>asList(
+                new EventHandler<ProductDataResponse>(ProductDataResponse.class, PROVIDER) {
+                    @Override
+                    public void onEvent(@NonNull final ProductDataResponse event) {
+                        onEventAsync(event);
+                    }
+                },
+                new EventHandler<PurchaseUpdatesResponse>(PurchaseUpdatesResponse.class,
+                                                          PROVIDER) {
+                    @Override
+                    public void onEvent(@NonNull final PurchaseUpdatesResponse event) {
+                        onEventAsync(event);
+                    }
+                },
+                new EventHandler<com.amazon.device.iap.model.PurchaseResponse>(
+                        com.amazon.device.iap.model.PurchaseResponse.class, PROVIDER) {
+                    @Override
+                    public void onEvent(
+                            @NonNull final com.amazon.device.iap.model.PurchaseResponse event) {
+                        onEventAsync(event);
+                    }
+                });
+    }
+
     public void onEventAsync(@NonNull final ProductDataResponse productDataResponse) {
         switch (productDataResponse.getRequestStatus()) {
             case SUCCESSFUL:
@@ -229,6 +260,12 @@ public class AmazonBillingProvider extends BaseBillingProvider<SkuResolver, Purc
         OPFChecks.checkPermission(context, ACCESS_NETWORK_STATE);
     }
 
+    @NonNull
+    @Override
+    protected Collection<String> getPackages() {
+        return PACKAGES;
+    }
+
     @Override
     public boolean isAvailable() {
         for (final String packageName : PACKAGES) {
@@ -33,21 +33,102 @@ import org.onepf.opfutils.OPFPreferences;
 import org.onepf.opfutils.OPFUtils;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static org.onepf.opfiab.google.GoogleBillingProvider.PACKAGE;
 
+/**
+ * Binder calls for different {@link ItemType}s and sku batches are made concurrently, results are
+ * merged type-major: all batches of one item type in {@link ItemType#values()} order, then all
+ * batches of the next one. The first response which is not OK in that order is returned.
+ */
 class GoogleBillingHelper extends AidlBillingHelper<IInAppBillingService> {
 
+    /**
+     * Pending getSkuDetails call for a batch of skus of a single item type.
+     */
+    private static final class Batch {
+
+        @NonNull
+        private final ItemType itemType;
+        private final int first;
+        private final int last;
+        @NonNull
+        private final Future<Bundle> future;
+
+        Batch(@NonNull final ItemType itemType, final int first, final int last,
+              @NonNull final Future<Bundle> future) {
+            this.itemType = itemType;
+            this.first = first;
+            this.last = last;
+            this.future = future;
+        }
+    }
+
     private static final String INTENT_ACTION = "com.android.vending.billing.InAppBillingService.BIND";
     private static final String INTENT_PACKAGE = "com.android.vending";
     private static final String KEY_CONTINUATION_TOKEN = PACKAGE + ".continuation_token.";
+    private static final String KEY_ITEM_TYPE = PACKAGE + ".item_type.";
 
 
     private static final int API = 3;
     private static final int BATCH_SIZE = 20;
+    // Retry budget of each call, getBuyIntent and consumePurchase are never retried since they're
+    // not idempotent
+    private static final int RETRIES_BILLING_SUPPORTED = 2;
+    private static final int RETRIES_BUY_INTENT = 0;
+    private static final int RETRIES_CONSUME = 0;
+    private static final int RETRIES_SKU_DETAILS = 2;
+    private static final int RETRIES_PURCHASES = 2;
+    private static final int IPC_THREADS = 4;
+    private static final long IPC_KEEP_ALIVE = 30L; // seconds
+
+    private static final ExecutorService IPC = newIpcExecutor();
+
+    @NonNull
+    private static ExecutorService newIpcExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                IPC_THREADS, IPC_THREADS, IPC_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(runnable, "OPFIab-google-ipc");
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Nullable
+    private static <T> T await(@NonNull final Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException exception) {
+            OPFLog.d("", exception);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exception) {
+            OPFLog.e("", exception);
+        }
+        return null;
+    }
+
+    private static void cancel(@NonNull final Iterable<? extends Future<?>> futures) {
+        for (final Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
 
 
     @NonNull
@@ -61,100 +142,199 @@ class GoogleBillingHelper extends AidlBillingHelper<IInAppBillingService> {
         this.preferences = new OPFPreferences(context, GoogleBillingProvider.NAME);
     }
 
+    /**
+     * Make a call to service in background, retrying it on binder failures.
+     *
+     * @see #call(ServiceCall, int)
+     */
+    @NonNull
+    private <T> Future<T> submit(@NonNull final ServiceCall<IInAppBillingService, T> serviceCall,
+                                 final int retries) {
+        return IPC.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return GoogleBillingHelper.this.call(serviceCall, retries);
+            }
+        });
+    }
+
     @Nullable
     Response isBillingSupported() {
         OPFLog.logMethod();
-        final IInAppBillingService service = getService();
-        if (service == null) {
-            return null;
+        final List<Future<Integer>> futures = new ArrayList<>();
+        for (final ItemType itemType : ItemType.values()) {
+            final String type = itemType.toString();
+            futures.add(submit(new ServiceCall<IInAppBillingService, Integer>() {
+                @Override
+                public Integer call(@NonNull final IInAppBillingService service)
+                        throws RemoteException {
+                    return service.isBillingSupported(API, packageName, type);
+                }
+            }, RETRIES_BILLING_SUPPORTED));
         }
         try {
-            for (final ItemType itemType : ItemType.values()) {
-                final int code = service.isBillingSupported(API, packageName, itemType.toString());
+            for (final Future<Integer> future : futures) {
+                final Integer code = await(future);
+                if (code == null) {
+                    OPFLog.d("Billing check failed.");
+                    return null;
+                }
                 final Response response = Response.fromCode(code);
                 if (response != Response.OK) {
                     return response;
                 }
             }
-            return Response.OK;
-        } catch (RemoteException exception) {
-            OPFLog.d("Billing check failed.", exception);
+        } finally {
+            cancel(futures);
         }
-        return null;
+        return Response.OK;
     }
 
     @Nullable
     Bundle getBuyIntent(@NonNull final String sku, @NonNull final ItemType itemType) {
         OPFLog.logMethod(sku, itemType);
-        final IInAppBillingService service = getService();
-        if (service == null) {
+        final String type = itemType.toString();
+        final Bundle result = call(new ServiceCall<IInAppBillingService, Bundle>() {
+            @Override
+            public Bundle call(@NonNull final IInAppBillingService service)
+                    throws RemoteException {
+                return service.getBuyIntent(API, packageName, sku, type, "");
+            }
+        }, RETRIES_BUY_INTENT);
+        if (result == null) {
+            OPFLog.d("getBuyIntent request failed.");
             return null;
         }
-        try {
-            final String type = itemType.toString();
-            final Bundle result = service.getBuyIntent(API, packageName, sku, type, "");
-            final Response response = GoogleUtils.getResponse(result);
-            OPFLog.d("Response: %s. Result: %s", response, OPFUtils.toString(result));
-            return result;
-        } catch (RemoteException exception) {
-            OPFLog.d("getBuyIntent request failed.", exception);
-        }
-        return null;
+        final Response response = GoogleUtils.getResponse(result);
+        OPFLog.d("Response: %s. Result: %s", response, OPFUtils.toString(result));
+        return result;
     }
 
     @Nullable
     Response consumePurchase(@NonNull final String token) {
         OPFLog.logMethod(token);
-        final IInAppBillingService service = getService();
-        if (service == null) {
+        final Integer code = call(new ServiceCall<IInAppBillingService, Integer>() {
+            @Override
+            public Integer call(@NonNull final IInAppBillingService service)
+                    throws RemoteException {
+                return service.consumePurchase(API, packageName, token);
+            }
+        }, RETRIES_CONSUME);
+        if (code == null) {
+            OPFLog.e("consumePurchase request failed.");
             return null;
         }
+        final Response response = Response.fromCode(code);
+        OPFLog.d("Response: %s", response);
+        return response;
+    }
 
-        try {
-            final int code = service.consumePurchase(API, packageName, token);
-            final Response response = Response.fromCode(code);
-            OPFLog.d("Response: %s", response);
-            return response;
-        } catch (RemoteException exception) {
-            OPFLog.e("consumePurchase request failed.", exception);
+    /**
+     * Consume several purchases in one pass, binder calls are made concurrently.
+     *
+     * @param tokens Tokens of purchases to consume.
+     * @return Tokens mapped to their consume responses, null response if call failed.
+     */
+    @NonNull
+    Map<String, Response> consumePurchases(@NonNull final Collection<String> tokens) {
+        OPFLog.logMethod(tokens);
+        final Map<String, Future<Response>> futures = new LinkedHashMap<>();
+        for (final String token : tokens) {
+            if (!futures.containsKey(token)) {
+                futures.put(token, IPC.submit(new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        return consumePurchase(token);
+                    }
+                }));
+            }
         }
-        return null;
+        final Map<String, Response> responses = new HashMap<>();
+        for (final Map.Entry<String, Future<Response>> entry : futures.entrySet()) {
+            responses.put(entry.getKey(), await(entry.getValue()));
+        }
+        return responses;
     }
 
+    /**
+     * Get type learned from sku details previously received for supplied sku.
+     *
+     * @param sku Sku to get type of.
+     * @return ItemType object, null if it's unknown.
+     */
     @Nullable
-    Bundle getSkuDetails(@NonNull final Collection<String> skus) {
-        OPFLog.logMethod(Arrays.toString(skus.toArray()));
-        final IInAppBillingService service = getService();
-        if (service == null) {
-            return null;
+    ItemType getItemType(@NonNull final String sku) {
+        return ItemType.fromCode(preferences.getString(KEY_ITEM_TYPE + sku));
+    }
+
+    /**
+     * Remember type of supplied sku, or forget it if type is null.
+     */
+    void setItemType(@NonNull final String sku, @Nullable final ItemType itemType) {
+        final String key = KEY_ITEM_TYPE + sku;
+        if (itemType == null) {
+            preferences.remove(key);
+        } else if (itemType != getItemType(sku)) {
+            preferences.put(key, itemType.toString());
         }
-        final List<String> skuList = new ArrayList<>(skus);
-        final Bundle result = new Bundle();
-        try {
+    }
+
+    /**
+     * Load sku details, querying each item type only for supplied skus.
+     *
+     * @param skus Skus to query mapped to item type. Sku of unknown type should be listed for
+     *             each item type.
+     * @return Bundle with details of all skus, or the first response which is not OK. Null if
+     * service call failed.
+     */
+    @Nullable
+    Bundle getSkuDetails(@NonNull final Map<ItemType, ? extends Collection<String>> skus) {
+        OPFLog.logMethod(skus);
+        final List<Batch> batches = new ArrayList<>();
+        for (final ItemType itemType : ItemType.values()) {
+            final Collection<String> typeSkus = skus.get(itemType);
+            if (typeSkus == null) {
+                continue;
+            }
+            final String type = itemType.toString();
+            final List<String> skuList = new ArrayList<>(typeSkus);
             final int size = skuList.size();
-            final int batchCount = size / BATCH_SIZE;
-            for (int i = 0; i <= batchCount; i++) {
-                final int first = i * BATCH_SIZE;
-                final int last = Math.min((i + 1) * BATCH_SIZE, size);
+            for (int first = 0; first < size; first += BATCH_SIZE) {
+                final int last = Math.min(first + BATCH_SIZE, size);
                 final ArrayList<String> batch = new ArrayList<>(skuList.subList(first, last));
                 final Bundle bundle = GoogleUtils.putSkuList(new Bundle(), batch);
-                for (final ItemType itemType : ItemType.values()) {
-                    final String type = itemType.toString();
-                    final Bundle details = service.getSkuDetails(API, packageName, type, bundle);
-                    final Response response = GoogleUtils.getResponse(details);
-                    OPFLog.d("From %d to %d. Type: %s. Response: %s. Details: %s.",
-                             first, last, itemType, response, OPFUtils.toString(details));
-                    if (response != Response.OK) {
-                        return details;
-                    } else {
-                        final ArrayList<String> skuDetails = GoogleUtils.getSkuDetails(details);
-                        GoogleUtils.addSkuDetails(result, skuDetails);
-                    }
+                batches.add(new Batch(itemType, first, last, submit(
+                        new ServiceCall<IInAppBillingService, Bundle>() {
+                            @Override
+                            public Bundle call(@NonNull final IInAppBillingService service)
+                                    throws RemoteException {
+                                return service.getSkuDetails(API, packageName, type, bundle);
+                            }
+                        }, RETRIES_SKU_DETAILS)));
+            }
+        }
+        final Bundle result = new Bundle();
+        try {
+            for (final Batch batch : batches) {
+                final Bundle details = await(batch.future);
+                if (details == null) {
+                    OPFLog.e("getSkuDetails request failed.");
+                    return null;
+                }
+                final Response response = GoogleUtils.getResponse(details);
+                OPFLog.d("From %d to %d. Type: %s. Response: %s. Details: %s.", batch.first,
+                         batch.last, batch.itemType, response, OPFUtils.toString(details));
+                if (response != Response.OK) {
+                    return details;
+                } else {
+                    final ArrayList<String> skuDetails = GoogleUtils.getSkuDetails(details);
+                    GoogleUtils.addSkuDetails(result, skuDetails);
                 }
             }
-        } catch (RemoteException exception) {
-            OPFLog.e("getSkuDetails request failed.", exception);
-            return null;
+        } finally {
+            for (final Batch batch : batches) {
+                batch.future.cancel(true);
+            }
         }
         return GoogleUtils.putResponse(result, Response.OK);
     }
@@ -162,40 +342,62 @@ class GoogleBillingHelper extends AidlBillingHelper<IInAppBillingService> {
     @Nullable
     Bundle getPurchases(final boolean startOver) {
         OPFLog.logMethod(startOver);
-        final IInAppBillingService service = getService();
-        if (service == null) {
-            return null;
+        final ItemType[] itemTypes = ItemType.values();
+        final List<Future<Bundle>> futures = new ArrayList<>(itemTypes.length);
+        for (final ItemType itemType : itemTypes) {
+            final String type = itemType.toString();
+            final String token = startOver ? null : preferences.getString(getTokenKey(itemType));
+            futures.add(submit(new ServiceCall<IInAppBillingService, Bundle>() {
+                @Override
+                public Bundle call(@NonNull final IInAppBillingService service)
+                        throws RemoteException {
+                    return service.getPurchases(API, packageName, type, token);
+                }
+            }, RETRIES_PURCHASES));
         }
-        final Bundle result = new Bundle();
         try {
-            for (final ItemType itemType : ItemType.values()) {
-                final String type = itemType.toString();
-                final String key = KEY_CONTINUATION_TOKEN + type;
-                final String token = startOver ? null : preferences.getString(key);
-                final Bundle purchases = service.getPurchases(API, packageName, type, token);
-                final Response response = GoogleUtils.getResponse(purchases);
-                OPFLog.d("Type: %s. Response: %s. Purchases: %s.",
-                         itemType, response, OPFUtils.toString(purchases));
-                if (response != Response.OK) {
-                    return purchases;
+            return mergePurchases(itemTypes, futures);
+        } finally {
+            cancel(futures);
+        }
+    }
+
+    @NonNull
+    private static String getTokenKey(@NonNull final ItemType itemType) {
+        return KEY_CONTINUATION_TOKEN + itemType;
+    }
+
+    @Nullable
+    private Bundle mergePurchases(@NonNull final ItemType[] itemTypes,
+                                  @NonNull final List<Future<Bundle>> futures) {
+        final Bundle result = new Bundle();
+        for (int i = 0; i < itemTypes.length; i++) {
+            final ItemType itemType = itemTypes[i];
+            final String key = getTokenKey(itemType);
+            final Bundle purchases = await(futures.get(i));
+            if (purchases == null) {
+                OPFLog.e("getPurchases request failed.");
+                return null;
+            }
+            final Response response = GoogleUtils.getResponse(purchases);
+            OPFLog.d("Type: %s. Response: %s. Purchases: %s.",
+                     itemType, response, OPFUtils.toString(purchases));
+            if (response != Response.OK) {
+                return purchases;
+            } else {
+                final ArrayList<String> purchaseDataList = GoogleUtils.getDataList(purchases);
+                final ArrayList<String> itemList = GoogleUtils.getItemList(purchases);
+                final ArrayList<String> signatureList = GoogleUtils.getSignatureList(purchases);
+                final String newToken = GoogleUtils.getContinuationToken(purchases);
+                GoogleUtils.addDataList(result, purchaseDataList);
+                GoogleUtils.addItemList(result, itemList);
+                GoogleUtils.addSignatureList(result, signatureList);
+                if (TextUtils.isEmpty(newToken)) {
+                    preferences.remove(key);
                 } else {
-                    final ArrayList<String> purchaseDataList = GoogleUtils.getDataList(purchases);
-                    final ArrayList<String> itemList = GoogleUtils.getItemList(purchases);
-                    final ArrayList<String> signatureList = GoogleUtils.getSignatureList(purchases);
-                    final String newToken = GoogleUtils.getContinuationToken(purchases);
-                    GoogleUtils.addDataList(result, purchaseDataList);
-                    GoogleUtils.addItemList(result, itemList);
-                    GoogleUtils.addSignatureList(result, signatureList);
-                    if (TextUtils.isEmpty(newToken)) {
-                        preferences.remove(key);
-                    } else {
-                        preferences.put(key, newToken);
-                    }
+                    preferences.put(key, newToken);
                 }
             }
-        } catch (RemoteException exception) {
-            OPFLog.e("getPurchases request failed.", exception);
-            return null;
         }
         return GoogleUtils.putResponse(result, Response.OK);
     }
@@ -27,8 +27,11 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import com.android.vending.billing.IInAppBillingService;
+
 import org.json.JSONException;
 import org.onepf.opfiab.billing.ActivityBillingProvider;
+import org.onepf.opfiab.billing.AidlBillingHelper;
 import org.onepf.opfiab.billing.BaseBillingProvider;
 import org.onepf.opfiab.google.model.GooglePurchase;
 import org.onepf.opfiab.google.model.GoogleSkuDetails;
@@ -39,7 +42,9 @@ import org.onepf.opfiab.model.BillingProviderInfo;
 import org.onepf.opfiab.model.billing.Purchase;
 import org.onepf.opfiab.model.billing.SkuDetails;
 import org.onepf.opfiab.model.billing.SkuType;
+import org.onepf.opfiab.model.event.billing.BillingRequest;
 import org.onepf.opfiab.model.event.billing.Status;
+import org.onepf.opfiab.util.LaneExecutor;
 import org.onepf.opfiab.verification.PurchaseVerifier;
 import org.onepf.opfutils.OPFChecks;
 import org.onepf.opfutils.OPFLog;
@@ -48,8 +53,10 @@ import org.onepf.opfutils.OPFUtils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static android.Manifest.permission.GET_ACCOUNTS;
@@ -69,6 +76,7 @@ public class GoogleBillingProvider
 
 
     protected final GoogleBillingHelper helper;
+    private boolean warmBind;
 
     protected GoogleBillingProvider(
             @NonNull final Context context,
@@ -90,6 +98,46 @@ public class GoogleBillingProvider
         }
     }
 
+    /**
+     * Get item type of supplied sku, either from {@link GoogleSkuResolver} or learned from
+     * previously received sku details.
+     *
+     * @param sku Sku to get item type for.
+     * @return ItemType object, null if it's unknown.
+     */
+    @Nullable
+    protected ItemType getItemType(@NonNull final String sku) {
+        final ItemType itemType = ItemType.fromSkuType(skuResolver.resolveType(sku));
+        return itemType == null ? helper.getItemType(sku) : itemType;
+    }
+
+    /**
+     * Group skus by item type they should be queried with.
+     * <br>
+     * Skus of unknown type are queried with every item type.
+     *
+     * @param skus Skus to group.
+     * @return Skus mapped to item type.
+     */
+    @NonNull
+    protected Map<ItemType, Collection<String>> routeSkus(@NonNull final Collection<String> skus) {
+        final Map<ItemType, Collection<String>> routes = new EnumMap<>(ItemType.class);
+        for (final ItemType itemType : ItemType.values()) {
+            routes.put(itemType, new ArrayList<String>());
+        }
+        for (final String sku : skus) {
+            final ItemType itemType = getItemType(sku);
+            if (itemType != null) {
+                routes.get(itemType).add(sku);
+                continue;
+            }
+            for (final Collection<String> typeSkus : routes.values()) {
+                typeSkus.add(sku);
+            }
+        }
+        return routes;
+    }
+
     @NonNull
     protected SkuDetails newSkuDetails(@NonNull final GoogleSkuDetails googleSkuDetails) {
         final String sku = googleSkuDetails.getProductId();
@@ -147,6 +195,19 @@ public class GoogleBillingProvider
         OPFChecks.checkPermission(context, PERMISSION_BILLING);
     }
 
+    @NonNull
+    @Override
+    protected Collection<String> getPackages() {
+        // Billing service is hosted by Play Store, not by provider package
+        return Collections.singletonList(INSTALLER);
+    }
+
+    @Override
+    protected boolean isUnavailabilityCacheable() {
+        // Binder call can fail transiently
+        return false;
+    }
+
     @Override
     public boolean isAvailable() {
         final Response response = helper.isBillingSupported();
@@ -168,10 +229,51 @@ public class GoogleBillingProvider
         return INFO;
     }
 
+    /**
+     * Get helper used to interact with billing service.
+     * <br>
+     * Intended for monitoring purposes, e.g. bind count and latency.
+     *
+     * @return AidlBillingHelper object.
+     */
+    @NonNull
+    public AidlBillingHelper<IInAppBillingService> getServiceHelper() {
+        return helper;
+    }
+
+    @Override
+    public void warmUp() {
+        if (warmBind) {
+            helper.bind();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Collection<LaneExecutor> getLanes() {
+        // Requests are handled in service callbacks, provider lane only hands them over
+        return Collections.singletonList(helper.getLane());
+    }
+
+    @Override
+    public void onEventAsync(@NonNull final BillingRequest billingRequest) {
+        // Don't park provider lane while service is being bound
+        helper.getService(new AidlBillingHelper.ServiceCallback<IInAppBillingService>() {
+            @Override
+            public void onService(@Nullable final IInAppBillingService service) {
+                if (service == null) {
+                    postEmptyResponse(billingRequest, Status.BILLING_UNAVAILABLE);
+                    postRequestHandled(billingRequest);
+                } else {
+                    GoogleBillingProvider.super.onEventAsync(billingRequest);
+                }
+            }
+        });
+    }
+
     @Override
     public void purchase(@NonNull final Activity activity, @NonNull final String sku) {
-        final SkuType skuType = skuResolver.resolveType(sku);
-        final ItemType itemType = ItemType.fromSkuType(skuType);
+        final ItemType itemType = getItemType(sku);
         if (itemType == null) {
             OPFLog.e("Unknown sku type: %s", sku);
             postPurchaseResponse(Status.ITEM_UNAVAILABLE, null);
@@ -215,9 +317,37 @@ public class GoogleBillingProvider
         postConsumeResponse(Status.SUCCESS, purchase);
     }
 
+    @Override
+    protected void consume(@NonNull final Collection<Purchase> purchases) {
+        final Collection<Purchase> consumable = new ArrayList<>(purchases.size());
+        final Collection<String> tokens = new ArrayList<>(purchases.size());
+        for (final Purchase purchase : purchases) {
+            final String token = purchase.getToken();
+            if (TextUtils.isEmpty(token)) {
+                OPFLog.e("Purchase token is empty: %s", purchase);
+                postConsumeResponse(Status.ITEM_UNAVAILABLE, purchase);
+            } else {
+                consumable.add(purchase);
+                tokens.add(token);
+            }
+        }
+        if (tokens.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Response> responses = helper.consumePurchases(tokens);
+        for (final Purchase purchase : consumable) {
+            final Response response = responses.get(purchase.getToken());
+            if (response != Response.OK) {
+                OPFLog.e("Consume failed: %s", purchase);
+            }
+            postConsumeResponse(getStatus(response), purchase);
+        }
+    }
+
     @Override
     public void skuDetails(@NonNull final Set<String> skus) {
-        final Bundle result = helper.getSkuDetails(skus);
+        final Bundle result = helper.getSkuDetails(routeSkus(skus));
         final Response response = GoogleUtils.getResponse(result);
         //noinspection ConstantConditions
         if (response != Response.OK || result == null) {
@@ -240,11 +370,15 @@ public class GoogleBillingProvider
                 final SkuDetails skuDetails = newSkuDetails(googleSkuDetails);
                 unresolvedSkus.remove(skuDetails.getSku());
                 skusDetails.add(skuDetails);
+                // Later queries for this sku will skip other item types
+                helper.setItemType(skuDetails.getSku(), googleSkuDetails.getItemType());
             } catch (JSONException exception) {
                 OPFLog.e("Failed to parse sku details: " + skusDetails, exception);
             }
         }
         for (final String sku : unresolvedSkus) {
+            // Learned type might be wrong, query all item types next time
+            helper.setItemType(sku, null);
             skusDetails.add(new SkuDetails(sku));
         }
         postSkuDetailsResponse(Status.SUCCESS, skusDetails);
@@ -327,13 +461,49 @@ public class GoogleBillingProvider
     public static class Builder
             extends BaseBillingProvider.Builder<GoogleSkuResolver, PurchaseVerifier> {
 
+        private boolean warmBind;
+        @Nullable
+        private Long idleTimeout;
+
         public Builder(@NonNull final Context context) {
             super(context, GoogleSkuResolver.DEFAULT, PurchaseVerifier.DEFAULT);
         }
 
         @Override
         public GoogleBillingProvider build() {
-            return new GoogleBillingProvider(context, skuResolver, purchaseVerifier);
+            final GoogleBillingProvider provider =
+                    new GoogleBillingProvider(context, skuResolver, purchaseVerifier);
+            provider.warmBind = warmBind;
+            if (idleTimeout != null) {
+                provider.helper.setIdleTimeout(idleTimeout);
+            }
+            return provider;
+        }
+
+        /**
+         * Start binding billing service ahead of predicted use: as soon as provider is picked by
+         * setup and when activity or fragment helper is created.
+         * <br>
+         * Default is false, service is bound on first request.
+         *
+         * @param warmBind True to bind service ahead of use.
+         * @return this object.
+         */
+        public Builder setWarmBind(final boolean warmBind) {
+            this.warmBind = warmBind;
+            return this;
+        }
+
+        /**
+         * Set maximum time billing service stays bound after it was last used.
+         *
+         * @param idleTimeout Time in milliseconds, 0 or less to never unbind idle service.
+         * @return this object.
+         * @see AidlBillingHelper#setIdleTimeout(long)
+         */
+        public Builder setIdleTimeout(final long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
         }
 
         @Override
@@ -22,7 +22,9 @@ import android.support.annotation.Nullable;
 import android.support.v4.app.FragmentActivity;
 
 import org.onepf.opfiab.api.ActivityIabHelper;
+import org.onepf.opfiab.api.RequestHandle;
 import org.onepf.opfiab.model.ComponentState;
+import org.onepf.opfiab.model.event.billing.PurchaseResponse;
 
 class ActivityIabHelperImpl extends ComponentIabHelper implements ActivityIabHelper {
 
@@ -75,8 +77,9 @@ class ActivityIabHelperImpl extends ComponentIabHelper implements ActivityIabHel
         }
     }
 
+    @NonNull
     @Override
-    public void purchase(@NonNull final String sku) {
-        purchase(getActivity(), sku);
+    public RequestHandle<PurchaseResponse> purchase(@NonNull final String sku) {
+        return purchase(getActivity(), sku);
     }
 }
@@ -21,15 +21,22 @@ import android.support.annotation.NonNull;
 import org.onepf.opfiab.api.AdvancedIabHelper;
 import org.onepf.opfiab.listener.BillingListener;
 import org.onepf.opfiab.listener.BillingListenerCompositor;
+import org.onepf.opfiab.listener.DeliveryThread;
 import org.onepf.opfiab.listener.OnConsumeListener;
 import org.onepf.opfiab.listener.OnInventoryListener;
 import org.onepf.opfiab.listener.OnPurchaseListener;
 import org.onepf.opfiab.listener.OnSetupListener;
 import org.onepf.opfiab.listener.OnSkuDetailsListener;
+import org.onepf.opfiab.listener.ThreadedBillingListener;
 import org.onepf.opfiab.model.event.SetupResponse;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.InventoryResponse;
+import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
 import org.onepf.opfutils.OPFChecks;
 
+import static org.onepf.opfiab.listener.DeliveryThread.MAIN;
+
 class AdvancedIabHelperImpl extends SimpleIabHelperImpl implements AdvancedIabHelper {
 
     private final BillingRequestScheduler scheduler = BillingRequestScheduler.getInstance();
@@ -54,11 +61,18 @@ class AdvancedIabHelperImpl extends SimpleIabHelperImpl implements AdvancedIabHe
             // Lazy setup
             OPFIab.setup();
             scheduler.schedule(this, billingRequest);
+        } else if (billingBase.attachToPending(billingRequest)) {
+            // Response for this request is already on its way
+            return;
+        } else if (billingRequest.getType() == BillingRequest.Type.SKU_DETAILS
+                && OPFIab.getConfiguration().getSkuDetailsMergeWindow() > 0L) {
+            // Let scheduler merge it with other sku details requests
+            scheduler.schedule(this, billingRequest);
         } else if (!billingBase.isBusy()) {
             // No need to schedule anything
             super.postRequest(billingRequest);
-        } else if (!billingRequest.equals(billingBase.getPendingRequest())) {
-            // If request is not already being precessed, schedule it for later
+        } else {
+            // Schedule request for later
             scheduler.schedule(this, billingRequest);
         }
     }
@@ -71,52 +85,132 @@ class AdvancedIabHelperImpl extends SimpleIabHelperImpl implements AdvancedIabHe
     @Override
     public void addSetupListener(@NonNull final OnSetupListener setupListener,
                                  final boolean deliverLast) {
+        addSetupListener(setupListener, deliverLast, MAIN);
+    }
+
+    @Override
+    public void addSetupListener(@NonNull final OnSetupListener setupListener,
+                                 final boolean deliverLast,
+                                 @NonNull final DeliveryThread deliveryThread) {
         OPFChecks.checkThread(true);
-        listenerCompositor.addSetupListener(setupListener);
+        listenerCompositor.addSetupListener(setupListener, deliveryThread);
         if (deliverLast) {
-            deliverLastSetupEvent(setupListener);
+            deliverLastSetupEvent(new ThreadedBillingListener(setupListener, deliveryThread));
         }
     }
 
     @Override
     public void addPurchaseListener(@NonNull final OnPurchaseListener purchaseListener) {
+        addPurchaseListener(purchaseListener, MAIN);
+    }
+
+    @Override
+    public void addPurchaseListener(@NonNull final OnPurchaseListener purchaseListener,
+                                    @NonNull final DeliveryThread deliveryThread) {
         OPFChecks.checkThread(true);
-        listenerCompositor.addPurchaseListener(purchaseListener);
+        listenerCompositor.addPurchaseListener(purchaseListener, deliveryThread);
     }
 
     @Override
     public void addInventoryListener(@NonNull final OnInventoryListener inventoryListener) {
+        addInventoryListener(inventoryListener, MAIN);
+    }
+
+    @Override
+    public void addInventoryListener(@NonNull final OnInventoryListener inventoryListener,
+                                     @NonNull final DeliveryThread deliveryThread) {
+        addInventoryListener(inventoryListener, false, deliveryThread);
+    }
+
+    @Override
+    public void addInventoryListener(@NonNull final OnInventoryListener inventoryListener,
+                                     final boolean deliverLast) {
+        addInventoryListener(inventoryListener, deliverLast, MAIN);
+    }
+
+    @Override
+    public void addInventoryListener(@NonNull final OnInventoryListener inventoryListener,
+                                     final boolean deliverLast,
+                                     @NonNull final DeliveryThread deliveryThread) {
         OPFChecks.checkThread(true);
-        listenerCompositor.addInventoryListener(inventoryListener);
+        listenerCompositor.addInventoryListener(inventoryListener, deliveryThread);
+        final BillingResponse inventoryResponse =
+                billingBase.getStickyResponse(BillingRequest.Type.INVENTORY);
+        if (deliverLast && inventoryResponse != null) {
+            new ThreadedBillingListener(inventoryListener, deliveryThread)
+                    .onInventory((InventoryResponse) inventoryResponse);
+        }
     }
 
     @Override
     public void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener) {
+        addSkuDetailsListener(skuInfoListener, MAIN);
+    }
+
+    @Override
+    public void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener,
+                                      @NonNull final DeliveryThread deliveryThread) {
+        addSkuDetailsListener(skuInfoListener, false, deliveryThread);
+    }
+
+    @Override
+    public void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener,
+                                      final boolean deliverLast) {
+        addSkuDetailsListener(skuInfoListener, deliverLast, MAIN);
+    }
+
+    @Override
+    public void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener,
+                                      final boolean deliverLast,
+                                      @NonNull final DeliveryThread deliveryThread) {
         OPFChecks.checkThread(true);
-        listenerCompositor.addSkuDetailsListener(skuInfoListener);
+        listenerCompositor.addSkuDetailsListener(skuInfoListener, deliveryThread);
+        final BillingResponse skuDetailsResponse =
+                billingBase.getStickyResponse(BillingRequest.Type.SKU_DETAILS);
+        if (deliverLast && skuDetailsResponse != null) {
+            new ThreadedBillingListener(skuInfoListener, deliveryThread)
+                    .onSkuDetails((SkuDetailsResponse) skuDetailsResponse);
+        }
     }
 
     @Override
     public void addConsumeListener(@NonNull final OnConsumeListener consumeListener) {
+        addConsumeListener(consumeListener, MAIN);
+    }
+
+    @Override
+    public void addConsumeListener(@NonNull final OnConsumeListener consumeListener,
+                                   @NonNull final DeliveryThread deliveryThread) {
         OPFChecks.checkThread(true);
-        listenerCompositor.addConsumeListener(consumeListener);
+        listenerCompositor.addConsumeListener(consumeListener, deliveryThread);
     }
 
     @Override
     public void addBillingListener(@NonNull final BillingListener billingListener) {
+        addBillingListener(billingListener, MAIN);
+    }
+
+    @Override
+    public void addBillingListener(@NonNull final BillingListener billingListener,
+                                   @NonNull final DeliveryThread deliveryThread) {
         OPFChecks.checkThread(true);
-        listenerCompositor.addBillingListener(billingListener);
-        deliverLastSetupEvent(billingListener);
+        listenerCompositor.addBillingListener(billingListener, deliveryThread);
+        deliverLastSetupEvent(new ThreadedBillingListener(billingListener, deliveryThread));
+    }
+
+    @Override
+    public long getLastResponseAge(@NonNull final BillingRequest.Type type) {
+        return billingBase.getStickyResponseAge(type);
     }
 
     @Override
     public void register() {
-        dispatcher.register(listenerCompositor);
+        dispatcher.register(this, listenerCompositor);
     }
 
     @Override
     public void unregister() {
-        dispatcher.unregister(listenerCompositor);
+        dispatcher.unregister(this, listenerCompositor);
         scheduler.dropQueue(this);
     }
 }
@@ -16,24 +16,57 @@
 
 package org.onepf.opfiab;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventSubscriber;
+import org.onepf.opfiab.billing.BaseBillingProvider;
 import org.onepf.opfiab.billing.BillingProvider;
 import org.onepf.opfiab.model.Configuration;
+import org.onepf.opfiab.model.billing.Purchase;
+import org.onepf.opfiab.model.billing.SkuDetails;
 import org.onepf.opfiab.model.event.RequestHandledEvent;
 import org.onepf.opfiab.model.event.SetupResponse;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
 import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.ConsumeBatchRequest;
+import org.onepf.opfiab.model.event.billing.ConsumeRequest;
+import org.onepf.opfiab.model.event.billing.ConsumeResponse;
+import org.onepf.opfiab.model.event.billing.PurchaseRequest;
+import org.onepf.opfiab.model.event.billing.PurchaseResponse;
+import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
+import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
 import org.onepf.opfiab.model.event.billing.Status;
 import org.onepf.opfiab.util.OPFIabUtils;
 import org.onepf.opfutils.OPFChecks;
+import org.onepf.opfutils.OPFLog;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.MAIN;
 import static org.onepf.opfiab.model.event.billing.Status.BILLING_UNAVAILABLE;
 import static org.onepf.opfiab.model.event.billing.Status.BUSY;
 import static org.onepf.opfiab.model.event.billing.Status.NO_BILLING_PROVIDER;
+import static org.onepf.opfiab.model.event.billing.Status.TIMEOUT;
 
-final class BillingBase {
+final class BillingBase implements EventSubscriber {
 
     private static BillingBase instance;
 
@@ -47,14 +80,62 @@ final class BillingBase {
     }
 
 
+    private final Handler handler = new Handler(Looper.getMainLooper());
     @NonNull
     private Configuration configuration;
     @Nullable
     private SetupResponse setupResponse;
     @Nullable
     private BillingProvider currentProvider;
-    @Nullable
-    private BillingRequest pendingRequest;
+    @NonNull
+    private final Collection<BillingRequest> pendingRequests = new LinkedList<>();
+    // Requests sent to provider which are still waiting for response, in order they were sent
+    @NonNull
+    private final Collection<BillingRequest> awaitingRequests = new LinkedList<>();
+    // Purchases of awaiting batch requests which are not answered yet
+    @NonNull
+    private final Map<BillingRequest, Collection<Purchase>> unansweredPurchases =
+            new IdentityHashMap<>();
+    // Responses created by library itself, mapped to corresponding requests
+    @NonNull
+    private final Map<BillingResponse, BillingRequest> emptyResponses = new IdentityHashMap<>();
+    // Timeout responses for requests which provider failed to handle in time
+    @NonNull
+    private final Map<BillingResponse, BillingRequest> timeoutResponses = new IdentityHashMap<>();
+    // Watchdogs of requests being handled by provider
+    @NonNull
+    private final Map<BillingRequest, Runnable> deadlines = new IdentityHashMap<>();
+    // Timed out requests provider might still answer, they are kept in awaitingRequests to
+    // preserve order of responses until provider reports them as handled
+    @NonNull
+    private final Set<BillingRequest> expiredRequests =
+            Collections.newSetFromMap(new IdentityHashMap<BillingRequest, Boolean>());
+    // Late responses for expired requests, they must not reach listeners
+    @NonNull
+    private final Set<BillingResponse> lateResponses =
+            Collections.newSetFromMap(new IdentityHashMap<BillingResponse, Boolean>());
+    // Handles mapped to exact instances of their requests
+    @NonNull
+    private final Map<BillingRequest, Collection<RequestHandleImpl<?>>> handles =
+            new IdentityHashMap<>();
+    // Requests still being handled which handles were released before response arrived
+    @NonNull
+    private final Map<BillingRequest, IabHelperImpl> releasedRequests = new IdentityHashMap<>();
+    // Requests which will be answered by responses for other ones, e.g. merged or covered
+    @NonNull
+    private final Map<BillingRequest, Collection<BillingRequest>> attachedRequests =
+            new IdentityHashMap<>();
+    // Helpers which sent requests corresponding to responses being delivered
+    @NonNull
+    private final Map<BillingResponse, Map<IabHelperImpl, Collection<BillingRequest>>> origins =
+            new IdentityHashMap<>();
+    // Last successful responses kept for new listeners, mapped to the time they were received
+    @NonNull
+    private final Map<BillingRequest.Type, BillingResponse> stickyResponses =
+            new EnumMap<>(BillingRequest.Type.class);
+    @NonNull
+    private final Map<BillingRequest.Type, Long> stickyTimes =
+            new EnumMap<>(BillingRequest.Type.class);
 
     private BillingBase() {
         super();
@@ -70,15 +151,420 @@ final class BillingBase {
         }
     }
 
-    private void postEmptyResponse(@NonNull final BillingRequest billingRequest,
-                                   @NonNull final Status status) {
-        OPFIab.post(OPFIabUtils.emptyResponse(null, billingRequest, status));
+    private void updateStickyResponses(@NonNull final BillingResponse billingResponse) {
+        if (!configuration.stickyResponses() || !billingResponse.isSuccessful()) {
+            return;
+        }
+        final BillingRequest.Type type = billingResponse.getType();
+        switch (type) {
+            case INVENTORY:
+            case SKU_DETAILS:
+                stickyResponses.put(type, billingResponse);
+                stickyTimes.put(type, SystemClock.elapsedRealtime());
+                break;
+            case PURCHASE:
+            case CONSUME:
+                // Kept inventory no longer reflects what user owns
+                stickyResponses.remove(BillingRequest.Type.INVENTORY);
+                stickyTimes.remove(BillingRequest.Type.INVENTORY);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Check whether supplied response might answer supplied request of the same type.
+     *
+     * @return False if response carries skus which were not requested, true otherwise.
+     */
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    private static boolean canAnswer(@NonNull final BillingRequest billingRequest,
+                                     @NonNull final BillingResponse billingResponse) {
+        switch (billingResponse.getType()) {
+            case PURCHASE:
+                final Purchase purchase = ((PurchaseResponse) billingResponse).getPurchase();
+                return purchase == null
+                        || purchase.getSku().equals(((PurchaseRequest) billingRequest).getSku());
+            case SKU_DETAILS:
+                final Collection<SkuDetails> skusDetails =
+                        ((SkuDetailsResponse) billingResponse).getSkusDetails();
+                if (skusDetails == null) {
+                    return true;
+                }
+                final Set<String> skus = ((SkuDetailsRequest) billingRequest).getSkus();
+                for (final SkuDetails skuDetails : skusDetails) {
+                    if (!skus.contains(skuDetails.getSku())) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Find request corresponding to the response received from {@link BillingProvider}.
+     * <br>
+     * Purchase and sku details responses are matched by their skus, so request which is never
+     * answered doesn't take responses of the following ones. Consume responses are matched by
+     * their purchase, batch request is done once each of its purchases is answered. Other
+     * responses of the same type are expected to arrive in the same order their requests were
+     * sent.
+     */
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    @Nullable
+    private BillingRequest pollAwaitingRequest(@NonNull final BillingResponse billingResponse) {
+        final BillingRequest.Type type = billingResponse.getType();
+        final Iterator<BillingRequest> iterator = awaitingRequests.iterator();
+        while (iterator.hasNext()) {
+            final BillingRequest request = iterator.next();
+            if (type != BillingRequest.Type.CONSUME) {
+                if (request.getType() == type && canAnswer(request, billingResponse)) {
+                    iterator.remove();
+                    return request;
+                }
+                continue;
+            }
+            final Purchase purchase = ((ConsumeResponse) billingResponse).getPurchase();
+            if (request.getType() == BillingRequest.Type.CONSUME
+                    && purchase.equals(((ConsumeRequest) request).getPurchase())) {
+                iterator.remove();
+                return request;
+            }
+            final Collection<Purchase> unanswered = unansweredPurchases.get(request);
+            if (unanswered != null && unanswered.remove(purchase)) {
+                if (unanswered.isEmpty()) {
+                    // Every purchase in batch is answered, regardless of order
+                    unansweredPurchases.remove(request);
+                    iterator.remove();
+                }
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collect supplied request with all requests attached to it, directly or not.
+     */
+    @NonNull
+    private Set<BillingRequest> getAttached(@NonNull final BillingRequest billingRequest) {
+        final Set<BillingRequest> requests =
+                Collections.newSetFromMap(new IdentityHashMap<BillingRequest, Boolean>());
+        final Collection<BillingRequest> queue = new LinkedList<>();
+        queue.add(billingRequest);
+        BillingRequest request;
+        while ((request = OPFIabUtils.poll(queue)) != null) {
+            if (requests.add(request) && attachedRequests.containsKey(request)) {
+                queue.addAll(attachedRequests.get(request));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Complete handles of the supplied request and requests attached to it, collect helpers
+     * which sent them.
+     *
+     * @param last False if more responses for the supplied request are expected.
+     * @return Helpers mapped to their requests answered by the supplied response.
+     */
+    @NonNull
+    private Map<IabHelperImpl, Collection<BillingRequest>> completeHandles(
+            @NonNull final BillingRequest billingRequest,
+            @NonNull final BillingResponse billingResponse,
+            final boolean last) {
+        final Set<BillingRequest> requests = getAttached(billingRequest);
+        if (last) {
+            attachedRequests.keySet().removeAll(requests);
+        }
+        final Map<IabHelperImpl, Collection<BillingRequest>> helpers = new HashMap<>();
+        for (final BillingRequest request : requests) {
+            final Collection<RequestHandleImpl<?>> requestHandles = last
+                    ? handles.remove(request)
+                    : handles.get(request);
+            if (requestHandles != null) {
+                // Merged response might carry more than this request asked for
+                final BillingResponse response =
+                        OPFIabUtils.filter(billingResponse, Collections.singletonList(request));
+                for (final RequestHandleImpl<?> handle : requestHandles) {
+                    addOrigin(helpers, handle.getHelper(), request);
+                    if (last) {
+                        handle.complete(response);
+                    } else {
+                        handle.offer(response);
+                    }
+                }
+            }
+            final IabHelperImpl helper = last
+                    ? releasedRequests.remove(request)
+                    : releasedRequests.get(request);
+            if (helper != null) {
+                addOrigin(helpers, helper, request);
+            }
+        }
+        return helpers;
+    }
+
+    private static void addOrigin(
+            @NonNull final Map<IabHelperImpl, Collection<BillingRequest>> helpers,
+            @NonNull final IabHelperImpl helper,
+            @NonNull final BillingRequest request) {
+        if (!helpers.containsKey(helper)) {
+            helpers.put(helper, new ArrayList<BillingRequest>());
+        }
+        helpers.get(helper).add(request);
+    }
+
+    private static void removeInstance(@NonNull final Collection<BillingRequest> requests,
+                                       @NonNull final BillingRequest billingRequest) {
+        final Iterator<BillingRequest> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == billingRequest) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    private void startWatchdog(@NonNull final BillingRequest billingRequest) {
+        final BillingRequest.Type type = billingRequest.getType();
+        long timeout = configuration.getRequestTimeout(type);
+        if (timeout <= 0L) {
+            return;
+        }
+        if (type == BillingRequest.Type.CONSUME_BATCH) {
+            // Timeout is given to each purchase in batch
+            timeout *= ((ConsumeBatchRequest) billingRequest).getPurchases().size();
+        }
+        final Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(billingRequest);
+            }
+        };
+        deadlines.put(billingRequest, deadline);
+        handler.postDelayed(deadline, timeout);
+    }
+
+    private void stopWatchdog(@NonNull final BillingRequest billingRequest) {
+        final Runnable deadline = deadlines.remove(billingRequest);
+        if (deadline != null) {
+            handler.removeCallbacks(deadline);
+        }
+    }
+
+    /**
+     * Give up on request which provider failed to handle in time.
+     * <br>
+     * Request is answered with {@link Status#TIMEOUT} and its slot is freed for the next one.
+     * Request still waits for its response, otherwise late response would be matched with
+     * the next request of the same type.
+     */
+    private void onTimeout(@NonNull final BillingRequest billingRequest) {
+        deadlines.remove(billingRequest);
+        OPFLog.e("Request timed out: %s", billingRequest);
+        removeInstance(pendingRequests, billingRequest);
+        expiredRequests.add(billingRequest);
+        for (final BillingResponse response : OPFIabUtils.emptyResponses(null, billingRequest,
+                                                                         TIMEOUT)) {
+            timeoutResponses.put(response, billingRequest);
+            OPFIab.post(response);
+        }
+        BillingRequestScheduler.getInstance().onRequestHandled();
+    }
+
+    void postEmptyResponse(@NonNull final BillingRequest billingRequest,
+                           @NonNull final Status status) {
+        OPFChecks.checkThread(true);
+        for (final BillingResponse response : OPFIabUtils.emptyResponses(null, billingRequest,
+                                                                         status)) {
+            emptyResponses.put(response, billingRequest);
+            OPFIab.post(response);
+        }
+    }
+
+    @NonNull
+    Configuration getConfiguration() {
+        return configuration;
     }
 
     void setConfiguration(@NonNull final Configuration configuration) {
         this.configuration = configuration;
         setCurrentProvider(null);
         setupResponse = null;
+        awaitingRequests.clear();
+        unansweredPurchases.clear();
+        handles.clear();
+        releasedRequests.clear();
+        attachedRequests.clear();
+        origins.clear();
+        stickyResponses.clear();
+        stickyTimes.clear();
+        for (final Runnable deadline : deadlines.values()) {
+            handler.removeCallbacks(deadline);
+        }
+        deadlines.clear();
+        expiredRequests.clear();
+        lateResponses.clear();
+    }
+
+    /**
+     * Track handle of the request which is about to be sent.
+     */
+    void addHandle(@NonNull final RequestHandleImpl<?> handle) {
+        OPFChecks.checkThread(true);
+        final BillingRequest request = handle.getRequest();
+        if (!handles.containsKey(request)) {
+            handles.put(request, new ArrayList<RequestHandleImpl<?>>());
+        }
+        handles.get(request).add(handle);
+    }
+
+    /**
+     * Stop tracking handle which was canceled or timed out before its request was answered.
+     * <br>
+     * If request is still being handled, its helper keeps receiving the response.
+     */
+    void releaseHandle(@NonNull final RequestHandleImpl<?> handle) {
+        OPFChecks.checkThread(true);
+        final BillingRequest request = handle.getRequest();
+        final Collection<RequestHandleImpl<?>> requestHandles = handles.get(request);
+        if (requestHandles == null || !requestHandles.remove(handle)) {
+            return;
+        }
+        if (requestHandles.isEmpty()) {
+            handles.remove(request);
+        }
+        for (final BillingRequest awaitingRequest : awaitingRequests) {
+            if (!expiredRequests.contains(awaitingRequest)
+                    && getAttached(awaitingRequest).contains(request)) {
+                releasedRequests.put(request, handle.getHelper());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get helpers which sent request corresponding to the supplied response.
+     * <br>
+     * Must be called once per response, after it was handled by BillingBase.
+     *
+     * @return Helpers mapped to their requests answered by the response, null if response can't
+     * be traced back to any request.
+     */
+    @Nullable
+    Map<IabHelperImpl, Collection<BillingRequest>> pollOrigins(
+            @NonNull final BillingResponse billingResponse) {
+        OPFChecks.checkThread(true);
+        return origins.remove(billingResponse);
+    }
+
+    /**
+     * Check whether supplied response answers request which has already timed out.
+     * <br>
+     * Must be called once per response, after it was handled by BillingBase.
+     *
+     * @return True if response must not be delivered to listeners, false otherwise.
+     */
+    boolean pollLate(@NonNull final BillingResponse billingResponse) {
+        OPFChecks.checkThread(true);
+        return lateResponses.remove(billingResponse);
+    }
+
+    /**
+     * Complete handles of the supplied request with responses for another one.
+     *
+     * @param runningRequest Request which is about to be sent or is already being handled.
+     * @param billingRequest Request which won't be sent on its own.
+     */
+    void attach(@NonNull final BillingRequest runningRequest,
+                @NonNull final BillingRequest billingRequest) {
+        OPFChecks.checkThread(true);
+        if (runningRequest == billingRequest) {
+            return;
+        }
+        if (!attachedRequests.containsKey(runningRequest)) {
+            attachedRequests.put(runningRequest, new ArrayList<BillingRequest>());
+        }
+        attachedRequests.get(runningRequest).add(billingRequest);
+    }
+
+    /**
+     * Cancel all handles of the request which will never be sent.
+     */
+    void dropHandles(@NonNull final BillingRequest billingRequest) {
+        OPFChecks.checkThread(true);
+        final Collection<RequestHandleImpl<?>> dropped = handles.remove(billingRequest);
+        if (dropped != null) {
+            for (final RequestHandleImpl<?> handle : dropped) {
+                handle.cancel();
+            }
+        }
+    }
+
+    /**
+     * Get last successful response of the supplied type, if {@link Configuration#stickyResponses()}
+     * is enabled.
+     */
+    @Nullable
+    BillingResponse getStickyResponse(@NonNull final BillingRequest.Type type) {
+        OPFChecks.checkThread(true);
+        return stickyResponses.get(type);
+    }
+
+    /**
+     * Get time passed since the response returned by
+     * {@link #getStickyResponse(BillingRequest.Type)} was received.
+     *
+     * @return Time in milliseconds, -1 if there's no such response.
+     */
+    long getStickyResponseAge(@NonNull final BillingRequest.Type type) {
+        OPFChecks.checkThread(true);
+        final Long time = stickyTimes.get(type);
+        return time == null ? -1L : SystemClock.elapsedRealtime() - time;
+    }
+
+    /**
+     * Drop cached availability of providers depending on supplied package.
+     * <br>
+     * If current provider is affected and {@link Configuration#autoRecover()} is set, new setup
+     * is started.
+     *
+     * @param packageName Name of installed, removed or changed package.
+     */
+    void onPackageChanged(@NonNull final String packageName) {
+        OPFChecks.checkThread(true);
+        boolean currentChanged = false;
+        for (final BillingProvider provider : configuration.getProviders()) {
+            if (provider instanceof BaseBillingProvider
+                    && ((BaseBillingProvider<?, ?>) provider).invalidateAvailability(packageName)
+                    && provider.equals(currentProvider)) {
+                currentChanged = true;
+            }
+        }
+        if (currentChanged && setupResponse != null && setupResponse.isSuccessful()
+                && configuration.autoRecover()) {
+            OPFLog.d("Current provider package changed: %s", packageName);
+            setCurrentProvider(null);
+            setupResponse = null;
+            OPFIab.setup();
+        }
+    }
+
+    /**
+     * Let current provider know that requests are expected soon.
+     *
+     * @see BaseBillingProvider#warmUp()
+     */
+    void warmUp() {
+        OPFChecks.checkThread(true);
+        if (currentProvider instanceof BaseBillingProvider) {
+            ((BaseBillingProvider<?, ?>) currentProvider).warmUp();
+        }
     }
 
     @Nullable
@@ -87,49 +573,154 @@ final class BillingBase {
         return setupResponse;
     }
 
+    /**
+     * Find request which is already being handled and whose response will satisfy supplied one.
+     */
     @Nullable
-    BillingRequest getPendingRequest() {
+    BillingRequest findCovering(@NonNull final BillingRequest billingRequest) {
         OPFChecks.checkThread(true);
-        return pendingRequest;
+        for (final BillingRequest request : pendingRequests) {
+            if (OPFIabUtils.covers(request, billingRequest)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attach supplied read-only request to equal or covering one which is already being handled.
+     * <br>
+     * Purchase and consume requests are never attached, each of them has to be handled.
+     *
+     * @return True if request was attached, false if there's no such request.
+     * @see #attach(BillingRequest, BillingRequest)
+     */
+    boolean attachToPending(@NonNull final BillingRequest billingRequest) {
+        OPFChecks.checkThread(true);
+        // Only read-only requests can share response, see OPFIabUtils.covers()
+        final BillingRequest pendingRequest = findCovering(billingRequest);
+        if (pendingRequest == null) {
+            return false;
+        }
+        attach(pendingRequest, billingRequest);
+        return true;
     }
 
     boolean isBusy() {
         OPFChecks.checkThread(true);
-        return getPendingRequest() != null;
+        return !pendingRequests.isEmpty();
     }
 
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
     void postRequest(@NonNull final BillingRequest billingRequest) {
         OPFChecks.checkThread(true);
         final SetupResponse setupResponse;
-        if (isBusy()) {
+        final BillingRequest coveringRequest = findCovering(billingRequest);
+        if (coveringRequest != null) {
+            // Response for running request will answer this one too, no need to repeat it
+            attach(coveringRequest, billingRequest);
+            OPFLog.d("Request %s is attached to %s", billingRequest, coveringRequest);
+        } else if (isBusy()) {
             // Library is busy with another request
             postEmptyResponse(billingRequest, BUSY);
         } else if ((setupResponse = getSetupResponse()) == null || !setupResponse.isSuccessful()) {
             // Setup was not started, is in progress or failed
             postEmptyResponse(billingRequest, NO_BILLING_PROVIDER);
         } else {
-            pendingRequest = billingRequest;
+            pendingRequests.add(billingRequest);
+            awaitingRequests.add(billingRequest);
+            if (billingRequest.getType() == BillingRequest.Type.CONSUME_BATCH) {
+                final List<Purchase> purchases =
+                        ((ConsumeBatchRequest) billingRequest).getPurchases();
+                unansweredPurchases.put(billingRequest, new LinkedList<>(purchases));
+            }
+            startWatchdog(billingRequest);
             // Send request to be handled by BillingProvider
             OPFIab.post(billingRequest);
         }
     }
 
+    @NonNull
+    @Override
+    public Collection<EventHandler<?>> getEventHandlers() {
+        return Arrays.<EventHandler<?>>asList(
+                new EventHandler<SetupResponse>(SetupResponse.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final SetupResponse event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<RequestHandledEvent>(RequestHandledEvent.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final RequestHandledEvent event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<BillingResponse>(BillingResponse.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final BillingResponse event) {
+                        onEventMainThread(event);
+                    }
+                });
+    }
+
     public void onEventMainThread(@NonNull final SetupResponse setupResponse) {
         this.setupResponse = setupResponse;
+        // Kept responses might belong to another provider
+        stickyResponses.clear();
+        stickyTimes.clear();
         if (setupResponse.isSuccessful()) {
-            setCurrentProvider(setupResponse.getBillingProvider());
+            final BillingProvider provider = setupResponse.getBillingProvider();
+            setCurrentProvider(provider);
+            warmUp();
         }
     }
 
     public void onEventMainThread(@NonNull final RequestHandledEvent event) {
+        final BillingRequest billingRequest = event.getBillingRequest();
+        if (expiredRequests.remove(billingRequest)) {
+            // Provider finally handled request which has already timed out, no more responses
+            removeInstance(awaitingRequests, billingRequest);
+            unansweredPurchases.remove(billingRequest);
+            return;
+        }
+        stopWatchdog(billingRequest);
         // At this point request should be handled by BillingProvider
-        if (!event.getBillingRequest().equals(pendingRequest)) {
+        if (!pendingRequests.remove(billingRequest)) {
             throw new IllegalStateException();
         }
-        pendingRequest = null;
     }
 
     public void onEventMainThread(@NonNull final BillingResponse billingResponse) {
+        final BillingRequest emptyRequest = emptyResponses.remove(billingResponse);
+        final BillingRequest timeoutRequest = timeoutResponses.remove(billingResponse);
+        final BillingRequest request;
+        final Map<IabHelperImpl, Collection<BillingRequest>> helpers;
+        if (emptyRequest != null) {
+            final boolean last = !emptyResponses.containsValue(emptyRequest);
+            helpers = completeHandles(emptyRequest, billingResponse, last);
+        } else if (timeoutRequest != null) {
+            final boolean last = !timeoutResponses.containsValue(timeoutRequest);
+            helpers = completeHandles(timeoutRequest, billingResponse, last);
+        } else if ((request = pollAwaitingRequest(billingResponse)) != null
+                && expiredRequests.contains(request)) {
+            // Handles were already completed with timeout
+            OPFLog.d("Late response for expired request: %s", request);
+            lateResponses.add(billingResponse);
+            helpers = null;
+        } else if (request != null) {
+            final boolean last = !awaitingRequests.contains(request);
+            helpers = completeHandles(request, billingResponse, last);
+        } else {
+            helpers = null;
+        }
+        if (helpers != null && !helpers.isEmpty()) {
+            origins.put(billingResponse, helpers);
+        }
+        if (!lateResponses.contains(billingResponse)) {
+            updateStickyResponses(billingResponse);
+        }
+
         // Current provider is set but is not available
         if (currentProvider != null && billingResponse.getStatus() == BILLING_UNAVAILABLE
                 // However last setup attempt was successful
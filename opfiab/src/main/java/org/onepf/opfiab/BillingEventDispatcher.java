@@ -19,8 +19,11 @@ package org.onepf.opfiab;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventSubscriber;
 import org.onepf.opfiab.listener.BillingListener;
 import org.onepf.opfiab.listener.BillingListenerCompositor;
+import org.onepf.opfiab.model.Configuration;
 import org.onepf.opfiab.model.event.SetupStartedEvent;
 import org.onepf.opfiab.model.event.SetupResponse;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
@@ -29,12 +32,27 @@ import org.onepf.opfiab.model.event.billing.ConsumeResponse;
 import org.onepf.opfiab.model.event.billing.InventoryResponse;
 import org.onepf.opfiab.model.event.billing.PurchaseResponse;
 import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
+import org.onepf.opfiab.util.OPFIabUtils;
 import org.onepf.opfutils.OPFChecks;
 import org.onepf.opfutils.OPFLog;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
-final class BillingEventDispatcher extends BillingListenerCompositor {
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.MAIN;
+
+/**
+ * Delivers billing events to registered listeners.
+ * <br>
+ * Each {@link BillingResponse} is delivered only to the helper which sent corresponding request,
+ * unless {@link Configuration#broadcastResponses()} is set or response can't be traced back to
+ * any request.
+ */
+final class BillingEventDispatcher extends BillingListenerCompositor implements EventSubscriber {
 
     @Nullable
     private static BillingEventDispatcher instance;
@@ -48,26 +66,75 @@ final class BillingEventDispatcher extends BillingListenerCompositor {
         return instance;
     }
 
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    private static void dispatch(@NonNull final BillingListener billingListener,
+                                 @NonNull final BillingResponse billingResponse) {
+        billingListener.onResponse(billingResponse);
+        switch (billingResponse.getType()) {
+            case PURCHASE:
+                billingListener.onPurchase((PurchaseResponse) billingResponse);
+                break;
+            case CONSUME:
+                billingListener.onConsume((ConsumeResponse) billingResponse);
+                break;
+            case INVENTORY:
+                billingListener.onInventory((InventoryResponse) billingResponse);
+                break;
+            case SKU_DETAILS:
+                billingListener.onSkuDetails((SkuDetailsResponse) billingResponse);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    // Listeners registered by helpers, used to deliver responses only to their recipients
+    private final Map<IabHelperImpl, BillingListener> helperListeners = new HashMap<>();
 
     private BillingEventDispatcher() {
         super();
     }
 
-    void register(@NonNull final BillingListener billingListener) {
+    void register(@NonNull final IabHelperImpl iabHelper,
+                  @NonNull final BillingListener billingListener) {
         addBillingListener(billingListener);
+        helperListeners.put(iabHelper, billingListener);
     }
 
-    void unregister(@NonNull final BillingListener billingListener) {
+    void unregister(@NonNull final IabHelperImpl iabHelper,
+                    @NonNull final BillingListener billingListener) {
         removeBillingListener(billingListener);
+        helperListeners.remove(iabHelper);
     }
 
-    protected void removeBillingListener(@NonNull final BillingListener billingListener) {
-        billingListeners.remove(billingListener);
-        setupListeners.remove(billingListener);
-        purchaseListeners.remove(billingListener);
-        consumeListeners.remove(billingListener);
-        inventoryListeners.remove(billingListener);
-        skuDetailsListeners.remove(billingListener);
+    @NonNull
+    @Override
+    public Collection<EventHandler<?>> getEventHandlers() {
+        return Arrays.<EventHandler<?>>asList(
+                new EventHandler<SetupStartedEvent>(SetupStartedEvent.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final SetupStartedEvent event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<SetupResponse>(SetupResponse.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final SetupResponse event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<BillingResponse>(BillingResponse.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final BillingResponse event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<BillingRequest>(BillingRequest.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final BillingRequest event) {
+                        onEventMainThread(event);
+                    }
+                });
     }
 
     public void onEventMainThread(@NonNull final SetupStartedEvent setupStartedEvent) {
@@ -78,24 +145,29 @@ final class BillingEventDispatcher extends BillingListenerCompositor {
         onSetupResponse(setupResponse);
     }
 
-    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
     public void onEventMainThread(@NonNull final BillingResponse billingResponse) {
-        onResponse(billingResponse);
-        switch (billingResponse.getType()) {
-            case PURCHASE:
-                onPurchase((PurchaseResponse) billingResponse);
-                break;
-            case CONSUME:
-                onConsume((ConsumeResponse) billingResponse);
-                break;
-            case INVENTORY:
-                onInventory((InventoryResponse) billingResponse);
-                break;
-            case SKU_DETAILS:
-                onSkuDetails((SkuDetailsResponse) billingResponse);
-                break;
-            default:
-                throw new IllegalStateException();
+        OPFLog.logMethod(billingResponse);
+        final BillingBase billingBase = BillingBase.getInstance();
+        final Map<IabHelperImpl, Collection<BillingRequest>> origins =
+                billingBase.pollOrigins(billingResponse);
+        if (billingBase.pollLate(billingResponse)) {
+            // Requester was already answered with timeout
+            return;
+        }
+        final BillingListener billingListener = OPFIab.getConfiguration().getBillingListener();
+        if (billingListener != null) {
+            dispatch(billingListener, billingResponse);
+        }
+        if (origins == null || OPFIab.getConfiguration().broadcastResponses()) {
+            dispatch(this, billingResponse);
+            return;
+        }
+        for (final IabHelperImpl iabHelper : origins.keySet()) {
+            final BillingListener helperListener = helperListeners.get(iabHelper);
+            if (helperListener != null) {
+                final Collection<BillingRequest> requests = origins.get(iabHelper);
+                dispatch(helperListener, OPFIabUtils.filter(billingResponse, requests));
+            }
         }
     }
 
@@ -113,16 +185,6 @@ final class BillingEventDispatcher extends BillingListenerCompositor {
         super.onRequest(billingRequest);
     }
 
-    @Override
-    public void onResponse(@NonNull final BillingResponse billingResponse) {
-        OPFLog.logMethod(billingResponse);
-        final BillingListener billingListener = OPFIab.getConfiguration().getBillingListener();
-        if (billingListener != null) {
-            billingListener.onResponse(billingResponse);
-        }
-        super.onResponse(billingResponse);
-    }
-
     @Override
     public void onSetupResponse(@NonNull final SetupResponse setupResponse) {
         OPFLog.logMethod(setupResponse);
@@ -132,40 +194,4 @@ final class BillingEventDispatcher extends BillingListenerCompositor {
         }
         super.onSetupResponse(setupResponse);
     }
-
-    @Override
-    public void onPurchase(@NonNull final PurchaseResponse purchaseResponse) {
-        final BillingListener billingListener = OPFIab.getConfiguration().getBillingListener();
-        if (billingListener != null) {
-            billingListener.onPurchase(purchaseResponse);
-        }
-        super.onPurchase(purchaseResponse);
-    }
-
-    @Override
-    public void onConsume(@NonNull final ConsumeResponse consumeResponse) {
-        final BillingListener billingListener = OPFIab.getConfiguration().getBillingListener();
-        if (billingListener != null) {
-            billingListener.onConsume(consumeResponse);
-        }
-        super.onConsume(consumeResponse);
-    }
-
-    @Override
-    public void onInventory(@NonNull final InventoryResponse inventoryResponse) {
-        final BillingListener billingListener = OPFIab.getConfiguration().getBillingListener();
-        if (billingListener != null) {
-            billingListener.onInventory(inventoryResponse);
-        }
-        super.onInventory(inventoryResponse);
-    }
-
-    @Override
-    public void onSkuDetails(@NonNull final SkuDetailsResponse skuDetailsResponse) {
-        final BillingListener billingListener = OPFIab.getConfiguration().getBillingListener();
-        if (billingListener != null) {
-            billingListener.onSkuDetails(skuDetailsResponse);
-        }
-        super.onSkuDetails(skuDetailsResponse);
-    }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.util.OPFIabUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Queue of {@link BillingRequest}s from a single helper, split into lanes by request type.
+ * <br>
+ * Intended for internal use by {@link BillingRequestScheduler}.
+ */
+final class BillingRequestQueue {
+
+    /**
+     * Request types in order of descending priority.
+     */
+    static final BillingRequest.Type[] PRIORITY = {
+            BillingRequest.Type.PURCHASE,
+            BillingRequest.Type.CONSUME,
+            BillingRequest.Type.CONSUME_BATCH,
+            BillingRequest.Type.INVENTORY,
+            BillingRequest.Type.SKU_DETAILS};
+
+
+    private final Map<BillingRequest.Type, Collection<BillingRequest>> lanes =
+            new EnumMap<>(BillingRequest.Type.class);
+    private int size;
+
+    BillingRequestQueue() {
+        super();
+        for (final BillingRequest.Type type : PRIORITY) {
+            lanes.put(type, new LinkedHashSet<BillingRequest>());
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(@NonNull final BillingRequest request) {
+        return lanes.get(request.getType()).contains(request);
+    }
+
+    boolean add(@NonNull final BillingRequest request) {
+        if (lanes.get(request.getType()).add(request)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    boolean remove(@NonNull final BillingRequest request) {
+        if (lanes.get(request.getType()).remove(request)) {
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    @NonNull
+    Collection<BillingRequest> getAll() {
+        final Collection<BillingRequest> requests = new ArrayList<>(size);
+        for (final Collection<BillingRequest> lane : lanes.values()) {
+            requests.addAll(lane);
+        }
+        return requests;
+    }
+
+    /**
+     * Get oldest enqueued request of the supplied type without removing it.
+     */
+    @Nullable
+    BillingRequest peek(@NonNull final BillingRequest.Type type) {
+        return OPFIabUtils.peek(lanes.get(type));
+    }
+
+    /**
+     * Remove oldest request from the lowest priority lane which is not empty.
+     *
+     * @return Removed request, null if queue is empty.
+     */
+    @Nullable
+    BillingRequest pollLowest() {
+        for (int i = PRIORITY.length - 1; i >= 0; i--) {
+            final BillingRequest request = OPFIabUtils.poll(lanes.get(PRIORITY[i]));
+            if (request != null) {
+                size--;
+                return request;
+            }
+        }
+        return null;
+    }
+}
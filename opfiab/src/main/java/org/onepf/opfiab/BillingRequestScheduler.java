@@ -18,21 +18,78 @@ package org.onepf.opfiab;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventSubscriber;
+import org.onepf.opfiab.billing.BillingProvider;
+import org.onepf.opfiab.model.Configuration;
+import org.onepf.opfiab.model.Configuration.OverflowPolicy;
 import org.onepf.opfiab.model.event.RequestHandledEvent;
 import org.onepf.opfiab.model.event.SetupResponse;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
+import org.onepf.opfiab.model.event.billing.Status;
 import org.onepf.opfiab.util.OPFIabUtils;
 import org.onepf.opfutils.OPFChecks;
+import org.onepf.opfutils.OPFLog;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
-final class BillingRequestScheduler {
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.MAIN;
+
+/**
+ * Class responsible for sending enqueued {@link BillingRequest}s as soon as library is ready to
+ * handle them.
+ * <br>
+ * Next request is sent right after previous one is handled, unless {@link BillingProvider}
+ * reports it's overloaded. In that case subsequent requests are delayed, starting with
+ * {@link Configuration#getSubsequentRequestDelay()} and doubling with each throttled response.
+ * <p/>
+ * Requests are picked by type priority: purchase, consume, inventory and sku details. Helpers with
+ * requests of the same type are served in round-robin order, so one helper can't starve others.
+ * Queue of each helper is bounded by {@link Configuration#getMaxQueueSize()}.
+ * <p/>
+ * If {@link Configuration#getSkuDetailsMergeWindow()} is set, all {@link SkuDetailsRequest}s
+ * enqueued during that window are sent as one request for union of their SKUs.
+ */
+final class BillingRequestScheduler implements EventSubscriber {
+
+    /**
+     * Every instance of enqueued request, equal requests from different helpers share one slot
+     * in queue.
+     */
+    private static final class Owners {
+
+        // Helper whose queue holds the request, it always owns at least one instance
+        @NonNull
+        private IabHelperImpl helper;
+        // Sent instances mapped to their helpers, each instance is tracked by its own handles
+        @NonNull
+        private final Map<BillingRequest, IabHelperImpl> requests = new IdentityHashMap<>();
+
+        Owners(@NonNull final IabHelperImpl helper, @NonNull final BillingRequest request) {
+            this.helper = helper;
+            requests.put(request, helper);
+        }
+    }
+
+    private static final long MAX_BACKOFF = 5000L; // 5 seconds
 
     @Nullable
     private static BillingRequestScheduler instance;
@@ -48,21 +105,23 @@ final class BillingRequestScheduler {
 
 
     private final Handler handler = new Handler(Looper.getMainLooper());
-    private final Map<IabHelperImpl, Collection<BillingRequest>> helpers = new HashMap<>();
-    @SuppressWarnings("OverlyComplexAnonymousInnerClass")
+    // Helpers in round-robin order, most recently served helper is moved to the end
+    private final Map<IabHelperImpl, BillingRequestQueue> helpers = new LinkedHashMap<>();
+    // Index of all enqueued requests mapped to their owners
+    private final Map<BillingRequest, Owners> owners = new HashMap<>();
+    // Enqueued instances of each helper, so its queue can be dropped without scanning the index
+    private final Map<IabHelperImpl, Set<BillingRequest>> owned = new HashMap<>();
+    private long backoff;
+    // Uptime when sku details merge window closes, zero if window is not open
+    private long mergeDeadline;
     private final Runnable handleNextRequest = new Runnable() {
         @Override
         public void run() {
-            for (final Map.Entry<IabHelperImpl, Collection<BillingRequest>> entry : helpers.entrySet()) {
-                final IabHelperImpl helper = entry.getKey();
-                if (helper.billingBase.isBusy()) {
-                    return;
-                }
-                final BillingRequest request = OPFIabUtils.poll(entry.getValue());
-                if (request != null) {
-                    entry.getKey().postRequest(request);
-                    return;
-                }
+            handleNext();
+            if (mergeDeadline > SystemClock.uptimeMillis()) {
+                // Wake up when merge window closes
+                handler.removeCallbacks(handleNextRequest);
+                handler.postAtTime(handleNextRequest, mergeDeadline);
             }
         }
     };
@@ -74,40 +133,317 @@ final class BillingRequestScheduler {
 
     private void schedule() {
         handler.removeCallbacks(handleNextRequest);
-        final long delay = OPFIab.getConfiguration().getSubsequentRequestDelay();
-        handler.postDelayed(handleNextRequest, delay);
+        if (backoff > 0) {
+            handler.postDelayed(handleNextRequest, backoff);
+        } else {
+            handler.post(handleNextRequest);
+        }
     }
 
-    void schedule(@NonNull final IabHelperImpl helper, @NonNull final BillingRequest request) {
-        for (final Collection<BillingRequest> requests : helpers.values()) {
-            if (requests.contains(request)) {
-                // Request is already in queue.
-                return;
+    private static boolean isThrottled(@NonNull final BillingResponse billingResponse) {
+        final Status status = billingResponse.getStatus();
+        // BUSY without provider info comes from library itself, not from provider
+        return status == Status.SERVICE_UNAVAILABLE
+                || (status == Status.BUSY && billingResponse.getProviderInfo() != null);
+    }
+
+    private boolean handleNext() {
+        final BillingBase billingBase = BillingBase.getInstance();
+        if (billingBase.getSetupResponse() == null) {
+            // Setup is in progress, queue will be handled when it's finished
+            return false;
+        }
+        final boolean merge = billingBase.getConfiguration().getSkuDetailsMergeWindow() > 0L;
+        for (final BillingRequest.Type type : BillingRequestQueue.PRIORITY) {
+            if (merge && type == BillingRequest.Type.SKU_DETAILS) {
+                return mergeDeadline <= SystemClock.uptimeMillis() && handleMerged(billingBase);
+            }
+            final Iterator<Map.Entry<IabHelperImpl, BillingRequestQueue>> iterator =
+                    helpers.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<IabHelperImpl, BillingRequestQueue> entry = iterator.next();
+                final BillingRequestQueue queue = entry.getValue();
+                final BillingRequest request = queue.peek(type);
+                if (request == null) {
+                    continue;
+                }
+                if (billingBase.isBusy()) {
+                    // Requests are handled one at a time
+                    break;
+                }
+                final IabHelperImpl helper = entry.getKey();
+                queue.remove(request);
+                attachOwners(billingBase, request, request);
+                iterator.remove();
+                if (!queue.isEmpty()) {
+                    // Move served helper to the end of the line
+                    helpers.put(helper, queue);
+                }
+                billingBase.postRequest(request);
+                return true;
             }
         }
+        return false;
+    }
 
-        final Collection<BillingRequest> queue;
-        if (!helpers.containsKey(helper)) {
-            helpers.put(helper, queue = new LinkedHashSet<>());
-        } else {
-            queue = helpers.get(helper);
+    /**
+     * Send all enqueued {@link SkuDetailsRequest}s as a single request.
+     */
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    private boolean handleMerged(@NonNull final BillingBase billingBase) {
+        final Set<String> skus = new HashSet<>();
+        final Collection<BillingRequest> merged = new ArrayList<>();
+        final Iterator<BillingRequestQueue> iterator = helpers.values().iterator();
+        while (iterator.hasNext()) {
+            final BillingRequestQueue queue = iterator.next();
+            BillingRequest request;
+            while ((request = queue.peek(BillingRequest.Type.SKU_DETAILS)) != null) {
+                if (skus.isEmpty() && billingBase.isBusy()) {
+                    return false;
+                }
+                queue.remove(request);
+                merged.add(request);
+                skus.addAll(((SkuDetailsRequest) request).getSkus());
+            }
+            if (queue.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        mergeDeadline = 0L;
+        if (skus.isEmpty()) {
+            return false;
+        }
+        final BillingRequest mergedRequest = new SkuDetailsRequest(skus);
+        for (final BillingRequest request : merged) {
+            attachOwners(billingBase, mergedRequest, request);
+        }
+        billingBase.postRequest(mergedRequest);
+        return true;
+    }
+
+    /**
+     * Remove enqueued request from index, every its instance will be answered by the supplied
+     * running request.
+     */
+    private void attachOwners(@NonNull final BillingBase billingBase,
+                              @NonNull final BillingRequest runningRequest,
+                              @NonNull final BillingRequest request) {
+        final Owners queued = owners.remove(request);
+        if (queued != null) {
+            for (final Map.Entry<BillingRequest, IabHelperImpl> entry
+                    : queued.requests.entrySet()) {
+                final BillingRequest instance = entry.getKey();
+                disown(entry.getValue(), instance);
+                billingBase.attach(runningRequest, instance);
+            }
+        }
+    }
+
+    private void own(@NonNull final IabHelperImpl helper, @NonNull final BillingRequest instance) {
+        Set<BillingRequest> requests = owned.get(helper);
+        if (requests == null) {
+            requests = Collections.newSetFromMap(new IdentityHashMap<BillingRequest, Boolean>());
+            owned.put(helper, requests);
+        }
+        requests.add(instance);
+    }
+
+    private void disown(@NonNull final IabHelperImpl helper,
+                        @NonNull final BillingRequest instance) {
+        final Set<BillingRequest> requests = owned.get(helper);
+        if (requests != null && requests.remove(instance) && requests.isEmpty()) {
+            owned.remove(helper);
+        }
+    }
+
+    private void overflow(@NonNull final BillingRequest request) {
+        OPFLog.d("Request queue overflow, dropping: %s", request);
+        BillingBase.getInstance().postEmptyResponse(request, Status.BUSY);
+    }
+
+    @NonNull
+    private BillingRequestQueue getQueue(@NonNull final IabHelperImpl helper) {
+        BillingRequestQueue queue = helpers.get(helper);
+        if (queue == null) {
+            helpers.put(helper, queue = new BillingRequestQueue());
+        }
+        return queue;
+    }
+
+    /**
+     * Remove request from queue of helper which no longer owns it.
+     *
+     * @return True if request was handed over to another owner, false if it has none left.
+     */
+    private boolean handOver(@NonNull final BillingRequest request,
+                             @NonNull final Owners queued) {
+        if (queued.requests.containsValue(queued.helper)) {
+            return true;
+        }
+        final BillingRequestQueue queue = helpers.get(queued.helper);
+        if (queue != null) {
+            queue.remove(request);
+            if (queue.isEmpty()) {
+                helpers.remove(queued.helper);
+            }
+        }
+        if (queued.requests.isEmpty()) {
+            return false;
+        }
+        queued.helper = queued.requests.values().iterator().next();
+        getQueue(queued.helper).add(request);
+        return true;
+    }
+
+    void schedule(@NonNull final IabHelperImpl helper, @NonNull final BillingRequest request) {
+        final Owners queued = owners.get(request);
+        if (queued != null && OPFIabUtils.isReadOnly(request)) {
+            // Request is already in queue, its response will be shared
+            queued.requests.put(request, helper);
+            own(helper, request);
+            return;
+        } else if (queued != null) {
+            // Purchase or consume can't share response of another one
+            OPFLog.d("Same request is already in queue: %s", request);
+            BillingBase.getInstance().postEmptyResponse(request, Status.BUSY);
+            return;
+        }
+
+        final BillingRequestQueue queue = getQueue(helper);
+
+        final Configuration configuration = BillingBase.getInstance().getConfiguration();
+        final int maxQueueSize = configuration.getMaxQueueSize();
+        if (maxQueueSize > 0 && queue.size() >= maxQueueSize) {
+            if (configuration.getOverflowPolicy() == OverflowPolicy.DROP_NEWEST) {
+                overflow(request);
+                return;
+            }
+            final BillingRequest dropped = queue.pollLowest();
+            //noinspection ConstantConditions
+            for (final Map.Entry<BillingRequest, IabHelperImpl> entry
+                    : owners.remove(dropped).requests.entrySet()) {
+                disown(entry.getValue(), entry.getKey());
+                overflow(entry.getKey());
+            }
         }
         queue.add(request);
+        owners.put(request, new Owners(helper, request));
+        own(helper, request);
+        final long mergeWindow = configuration.getSkuDetailsMergeWindow();
+        if (mergeWindow > 0L && mergeDeadline == 0L
+                && request.getType() == BillingRequest.Type.SKU_DETAILS) {
+            mergeDeadline = SystemClock.uptimeMillis() + mergeWindow;
+        }
         schedule();
     }
 
-    void dropQueue(@NonNull final AdvancedIabHelperImpl iabHelper) {
+    /**
+     * Drop request if it's still waiting in queue.
+     * <br>
+     * Enqueued request stays in queue while other helpers are still waiting for it.
+     *
+     * @param request Exact instance of request which was scheduled.
+     */
+    void cancel(@NonNull final BillingRequest request) {
+        final Owners queued = owners.get(request);
+        final IabHelperImpl helper;
+        if (queued == null || (helper = queued.requests.remove(request)) == null) {
+            return;
+        }
+        disown(helper, request);
+        if (!handOver(request, queued)) {
+            owners.remove(request);
+        }
+    }
+
+    /**
+     * Drop every request enqueued by the supplied helper.
+     * <br>
+     * Requests shared with other helpers stay in queue.
+     */
+    void dropQueue(@NonNull final IabHelperImpl iabHelper) {
+        final Set<BillingRequest> dropped = owned.remove(iabHelper);
+        if (dropped == null) {
+            return;
+        }
+        for (final BillingRequest request : dropped) {
+            final Owners queued = owners.get(request);
+            if (queued != null && queued.requests.remove(request) != null
+                    && !handOver(request, queued)) {
+                owners.remove(request);
+            }
+        }
         helpers.remove(iabHelper);
+        final BillingBase billingBase = BillingBase.getInstance();
+        for (final BillingRequest request : dropped) {
+            billingBase.dropHandles(request);
+        }
     }
 
     void dropQueue() {
         handler.removeCallbacks(handleNextRequest);
         helpers.clear();
+        owners.clear();
+        owned.clear();
+        backoff = 0L;
+        mergeDeadline = 0L;
+    }
+
+    /**
+     * Called when slot of handled or timed out request is released.
+     */
+    void onRequestHandled() {
+        if (backoff > 0) {
+            schedule();
+        } else {
+            // Slot was just released, no reason to wait
+            handler.removeCallbacks(handleNextRequest);
+            handleNextRequest.run();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Collection<EventHandler<?>> getEventHandlers() {
+        return Arrays.<EventHandler<?>>asList(
+                new EventHandler<RequestHandledEvent>(RequestHandledEvent.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final RequestHandledEvent event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<BillingResponse>(BillingResponse.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final BillingResponse event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<SetupResponse>(SetupResponse.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final SetupResponse event) {
+                        onEventMainThread(event);
+                    }
+                });
     }
 
     @SuppressWarnings("UnusedParameters")
     public void onEventMainThread(@NonNull final RequestHandledEvent event) {
-        schedule();
+        onRequestHandled();
+    }
+
+    public void onEventMainThread(@NonNull final BillingResponse billingResponse) {
+        // Response usually arrives before corresponding RequestHandledEvent, but purchase is
+        // reported handled once its activity is started, so its response might come much later
+        if (isThrottled(billingResponse)) {
+            final long delay = BillingBase.getInstance().getConfiguration()
+                    .getSubsequentRequestDelay();
+            backoff = backoff > 0 ? Math.min(backoff * 2, MAX_BACKOFF) : delay;
+            OPFLog.d("Provider is throttling requests, backoff: %d", backoff);
+            // Slot might be already released, next request must respect backoff too
+            schedule();
+        } else if (billingResponse.isSuccessful()) {
+            backoff = 0L;
+        }
     }
 
     @SuppressWarnings("UnusedParameters")
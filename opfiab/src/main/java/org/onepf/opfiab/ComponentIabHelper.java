@@ -23,11 +23,18 @@ import android.support.annotation.Nullable;
 
 import org.onepf.opfiab.android.OPFIabFragment;
 import org.onepf.opfiab.android.OPFIabSupportFragment;
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventSubscriber;
 import org.onepf.opfiab.model.ComponentState;
 import org.onepf.opfiab.model.event.android.FragmentLifecycleEvent;
 import org.onepf.opfiab.model.event.android.SupportFragmentLifecycleEvent;
 
-abstract class ComponentIabHelper extends AdvancedIabHelperImpl {
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.MAIN;
+
+abstract class ComponentIabHelper extends AdvancedIabHelperImpl implements EventSubscriber {
 
     protected static final String FRAGMENT_TAG = "OPFIabFragment";
 
@@ -39,6 +46,8 @@ abstract class ComponentIabHelper extends AdvancedIabHelperImpl {
             @Nullable final android.app.FragmentManager fragmentManager) {
         super();
         OPFIab.register(this);
+        // Component helper usually belongs to store screen, requests are likely to follow
+        billingBase.warmUp();
 
         if (supportFragmentManager != null) {
             final android.support.v4.app.Fragment existingFragment = supportFragmentManager
@@ -79,6 +88,25 @@ abstract class ComponentIabHelper extends AdvancedIabHelperImpl {
 
     protected abstract void handleState(@NonNull final ComponentState type);
 
+    @NonNull
+    @Override
+    public Collection<EventHandler<?>> getEventHandlers() {
+        return Arrays.<EventHandler<?>>asList(
+                new EventHandler<FragmentLifecycleEvent>(FragmentLifecycleEvent.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final FragmentLifecycleEvent event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<SupportFragmentLifecycleEvent>(
+                        SupportFragmentLifecycleEvent.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final SupportFragmentLifecycleEvent event) {
+                        onEventMainThread(event);
+                    }
+                });
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
     public void onEventMainThread(@NonNull final FragmentLifecycleEvent event) {
         if (opfFragment == event.getFragment()) {
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.onepf.opfiab;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventHandler.ThreadMode;
+import org.onepf.opfiab.util.BatchExecutor;
+import org.onepf.opfiab.util.LaneExecutor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers events to registered {@link EventHandler}s.
+ * <br>
+ * Handlers of each event class are looked up once, when such event is posted for the first time.
+ * This index is then updated in place on each registration change, so neither posting an event
+ * nor registering a subscriber involves any reflection or full rescan.
+ * <p/>
+ * Background handlers are executed in separate lanes: one for setup and one for each subscriber
+ * with {@link ThreadMode#PROVIDER} handlers, so slow setup never delays billing provider.
+ * Subscriber keeps its lane for the lifetime of the process.
+ * <br>
+ * Events posted from background threads reach main thread handlers through
+ * {@link BatchExecutor}, which might coalesce them into a single main thread message.
+ * <br>
+ * Events posted by a handler are queued per thread and delivered only after the event being
+ * handled has reached all its handlers, so they never overtake it.
+ * <p/>
+ * Can be used from any thread.
+ */
+final class EventDispatcher {
+
+    private static final class Subscription {
+
+        @NonNull
+        private final EventHandler<Object> handler;
+        private final int priority;
+        // Executor for background handlers, null for main thread handlers
+        @Nullable
+        private final Executor lane;
+        private volatile boolean active = true;
+
+        @SuppressWarnings("unchecked")
+        Subscription(@NonNull final EventHandler<?> handler, final int priority,
+                     @Nullable final Executor lane) {
+            this.handler = (EventHandler<Object>) handler;
+            this.priority = priority;
+            this.lane = lane;
+        }
+
+        void deliver(@NonNull final Object event) {
+            if (active) {
+                handler.onEvent(event);
+            }
+        }
+    }
+
+
+    // Events posted on each thread while it's still delivering another one
+    private final ThreadLocal<Queue<Object>> postingQueues = new ThreadLocal<Queue<Object>>() {
+        @Override
+        protected Queue<Object> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+    private final BatchExecutor mainExecutor = new BatchExecutor();
+    private final LaneExecutor setupLane = new LaneExecutor("OPFIab-setup");
+    // Each subscriber must use only one background thread. Lanes are kept after unregister, so
+    // re-registered subscriber, or equal one, e.g. re-created provider, never runs concurrently
+    // with tasks still left in its old lane.
+    private final Map<Object, LaneExecutor> providerLanes = new HashMap<>();
+    private final Map<Object, List<Subscription>> subscribers = new IdentityHashMap<>();
+    // All subscriptions sorted by priority, replaced on each change
+    @NonNull
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    // Subscriptions for each posted event class, replaced on each change
+    @NonNull
+    private volatile Map<Class<?>, Subscription[]> table = new HashMap<>();
+
+    @NonNull
+    private static Subscription[] find(@NonNull final Subscription[] subscriptions,
+                                       @NonNull final Class<?> eventClass) {
+        final List<Subscription> found = new ArrayList<>();
+        for (final Subscription subscription : subscriptions) {
+            if (subscription.handler.getEventType().isAssignableFrom(eventClass)) {
+                found.add(subscription);
+            }
+        }
+        return found.toArray(new Subscription[found.size()]);
+    }
+
+    /**
+     * Update cached subscriptions of each known event class with changed ones.
+     */
+    @NonNull
+    private static Map<Class<?>, Subscription[]> reindex(
+            @NonNull final Map<Class<?>, Subscription[]> table,
+            @NonNull final Subscription[] subscriptions,
+            @NonNull final Collection<Subscription> changed) {
+        final Map<Class<?>, Subscription[]> newTable = new HashMap<>(table.size());
+        for (final Map.Entry<Class<?>, Subscription[]> entry : table.entrySet()) {
+            final Class<?> eventClass = entry.getKey();
+            boolean affected = false;
+            for (final Subscription subscription : changed) {
+                if (subscription.handler.getEventType().isAssignableFrom(eventClass)) {
+                    affected = true;
+                    break;
+                }
+            }
+            newTable.put(eventClass, affected ? find(subscriptions, eventClass) : entry.getValue());
+        }
+        return newTable;
+    }
+
+    @NonNull
+    private Subscription[] getSubscriptions(@NonNull final Class<?> eventClass) {
+        final Subscription[] cached = table.get(eventClass);
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (this) {
+            final Map<Class<?>, Subscription[]> newTable = new HashMap<>(table);
+            final Subscription[] found = find(subscriptions, eventClass);
+            newTable.put(eventClass, found);
+            table = newTable;
+            return found;
+        }
+    }
+
+    private void deliver(@NonNull final Subscription subscription, @NonNull final Object event) {
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                subscription.deliver(event);
+            }
+        };
+        final Executor lane = subscription.lane;
+        if (lane != null) {
+            lane.execute(runnable);
+        } else if (Looper.myLooper() == Looper.getMainLooper()) {
+            subscription.deliver(event);
+        } else {
+            mainExecutor.execute(runnable);
+        }
+    }
+
+    @Nullable
+    private Executor getLane(@NonNull final Object subscriber,
+                             @NonNull final ThreadMode threadMode) {
+        switch (threadMode) {
+            case MAIN:
+                return null;
+            case SETUP:
+                return setupLane;
+            case PROVIDER:
+                LaneExecutor lane = providerLanes.get(subscriber);
+                if (lane == null) {
+                    final String name = "OPFIab-" + subscriber.getClass().getSimpleName();
+                    providerLanes.put(subscriber, lane = new LaneExecutor(name));
+                }
+                return lane;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Get executor used to deliver events to main thread handlers.
+     *
+     * @return BatchExecutor object.
+     */
+    @NonNull
+    BatchExecutor getMainExecutor() {
+        return mainExecutor;
+    }
+
+    /**
+     * Get all background lanes used to deliver events.
+     *
+     * @return Collection of LaneExecutor objects.
+     */
+    @NonNull
+    Collection<LaneExecutor> getLanes() {
+        synchronized (this) {
+            final Collection<LaneExecutor> lanes = new ArrayList<>(providerLanes.values());
+            lanes.add(setupLane);
+            return lanes;
+        }
+    }
+
+    boolean isRegistered(@NonNull final Object subscriber) {
+        synchronized (this) {
+            return subscribers.containsKey(subscriber);
+        }
+    }
+
+    void register(@NonNull final Object subscriber,
+                  @NonNull final Collection<EventHandler<?>> handlers,
+                  final int priority) {
+        synchronized (this) {
+            if (subscribers.containsKey(subscriber)) {
+                return;
+            }
+            final List<Subscription> subscriberSubscriptions = new ArrayList<>(handlers.size());
+            final List<Subscription> newSubscriptions = new ArrayList<>(subscriptions.length
+                                                                          + handlers.size());
+            for (final Subscription subscription : subscriptions) {
+                newSubscriptions.add(subscription);
+            }
+            for (final EventHandler<?> handler : handlers) {
+                final Executor lane = getLane(subscriber, handler.getThreadMode());
+                final Subscription subscription = new Subscription(handler, priority, lane);
+                subscriberSubscriptions.add(subscription);
+                // Keep subscriptions with equal priority in order they were registered
+                int index = newSubscriptions.size();
+                while (index > 0 && newSubscriptions.get(index - 1).priority < priority) {
+                    index--;
+                }
+                newSubscriptions.add(index, subscription);
+            }
+            subscribers.put(subscriber, subscriberSubscriptions);
+            subscriptions = newSubscriptions.toArray(new Subscription[newSubscriptions.size()]);
+            table = reindex(table, subscriptions, subscriberSubscriptions);
+        }
+    }
+
+    void unregister(@NonNull final Object subscriber) {
+        synchronized (this) {
+            final List<Subscription> removed = subscribers.remove(subscriber);
+            if (removed == null) {
+                return;
+            }
+            final List<Subscription> newSubscriptions = new ArrayList<>(subscriptions.length);
+            for (final Subscription subscription : subscriptions) {
+                if (removed.contains(subscription)) {
+                    // Events which are already on their way won't be delivered
+                    subscription.active = false;
+                } else {
+                    newSubscriptions.add(subscription);
+                }
+            }
+            subscriptions = newSubscriptions.toArray(new Subscription[newSubscriptions.size()]);
+            table = reindex(table, subscriptions, removed);
+        }
+    }
+
+    /**
+     * Deliver event to all handlers of its class and superclasses.
+     *
+     * @return False if there's no handlers for the supplied event, true otherwise.
+     */
+    boolean post(@NonNull final Object event) {
+        if (getSubscriptions(event.getClass()).length == 0) {
+            return false;
+        }
+        final Queue<Object> queue = postingQueues.get();
+        queue.add(event);
+        if (queue.size() > 1) {
+            // Posted from handler, event will be delivered once current one is
+            return true;
+        }
+        try {
+            Object next;
+            while ((next = queue.peek()) != null) {
+                for (final Subscription subscription : getSubscriptions(next.getClass())) {
+                    deliver(subscription, next);
+                }
+                queue.poll();
+            }
+        } finally {
+            queue.clear();
+        }
+        return true;
+    }
+}
@@ -23,8 +23,10 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import org.onepf.opfiab.api.FragmentIabHelper;
+import org.onepf.opfiab.api.RequestHandle;
 import org.onepf.opfiab.model.ComponentState;
 import org.onepf.opfiab.model.event.billing.PurchaseRequest;
+import org.onepf.opfiab.model.event.billing.PurchaseResponse;
 
 class FragmentIabHelperImpl extends ComponentIabHelper implements FragmentIabHelper {
 
@@ -73,8 +75,9 @@ class FragmentIabHelperImpl extends ComponentIabHelper implements FragmentIabHel
         }
     }
 
+    @NonNull
     @Override
-    public void purchase(@NonNull final String sku) {
-        postRequest(new PurchaseRequest(getActivity(), sku, true));
+    public RequestHandle<PurchaseResponse> purchase(@NonNull final String sku) {
+        return sendRequest(new PurchaseRequest(getActivity(), sku, true));
     }
 }
@@ -16,22 +16,34 @@
 
 package org.onepf.opfiab;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 
 import org.onepf.opfiab.api.IabHelper;
+import org.onepf.opfiab.api.RequestHandle;
 import org.onepf.opfiab.model.billing.Purchase;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.ConsumeBatchRequest;
 import org.onepf.opfiab.model.event.billing.ConsumeRequest;
+import org.onepf.opfiab.model.event.billing.ConsumeResponse;
 import org.onepf.opfiab.model.event.billing.InventoryRequest;
+import org.onepf.opfiab.model.event.billing.InventoryResponse;
 import org.onepf.opfiab.model.event.billing.PurchaseRequest;
+import org.onepf.opfiab.model.event.billing.PurchaseResponse;
 import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
+import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
 class IabHelperImpl implements IabHelper {
 
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
     protected final BillingBase billingBase = BillingBase.getInstance();
 
     IabHelperImpl() {
@@ -42,28 +54,62 @@ class IabHelperImpl implements IabHelper {
         billingBase.postRequest(billingRequest);
     }
 
+    @NonNull
+    protected <R extends BillingResponse> RequestHandle<R> sendRequest(
+            @NonNull final BillingRequest billingRequest) {
+        final RequestHandleImpl<R> handle = new RequestHandleImpl<>(this, billingRequest);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            billingBase.addHandle(handle);
+            postRequest(billingRequest);
+        } else {
+            // Request is sent from background listener
+            HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    billingBase.addHandle(handle);
+                    postRequest(billingRequest);
+                }
+            });
+        }
+        return handle;
+    }
+
+    @NonNull
+    @Override
+    public RequestHandle<PurchaseResponse> purchase(@NonNull final String sku) {
+        return sendRequest(new PurchaseRequest(sku));
+    }
+
+    @NonNull
     @Override
-    public void purchase(@NonNull final String sku) {
-        postRequest(new PurchaseRequest(sku));
+    public RequestHandle<ConsumeResponse> consume(@NonNull final Purchase purchase) {
+        return sendRequest(new ConsumeRequest(purchase));
     }
 
+    @NonNull
     @Override
-    public void consume(@NonNull final Purchase purchase) {
-        postRequest(new ConsumeRequest(purchase));
+    public RequestHandle<ConsumeResponse> consume(@NonNull final Collection<Purchase> purchases) {
+        if (purchases.size() == 1) {
+            return consume(purchases.iterator().next());
+        }
+        return sendRequest(new ConsumeBatchRequest(purchases));
     }
 
+    @NonNull
     @Override
-    public void inventory(final boolean startOver) {
-        postRequest(new InventoryRequest(startOver));
+    public RequestHandle<InventoryResponse> inventory(final boolean startOver) {
+        return sendRequest(new InventoryRequest(startOver));
     }
 
+    @NonNull
     @Override
-    public void skuDetails(@NonNull final Set<String> skus) {
-        postRequest(new SkuDetailsRequest(skus));
+    public RequestHandle<SkuDetailsResponse> skuDetails(@NonNull final Set<String> skus) {
+        return sendRequest(new SkuDetailsRequest(skus));
     }
 
+    @NonNull
     @Override
-    public final void skuDetails(@NonNull final String... skus) {
-        skuDetails(new HashSet<>(Arrays.asList(skus)));
+    public final RequestHandle<SkuDetailsResponse> skuDetails(@NonNull final String... skus) {
+        return skuDetails(new HashSet<>(Arrays.asList(skus)));
     }
 }
@@ -27,21 +27,30 @@ import android.support.v4.app.FragmentActivity;
 
 import org.onepf.opfiab.api.ActivityIabHelper;
 import org.onepf.opfiab.api.AdvancedIabHelper;
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventSubscriber;
 import org.onepf.opfiab.api.FragmentIabHelper;
 import org.onepf.opfiab.api.IabHelper;
 import org.onepf.opfiab.api.SimpleIabHelper;
+import org.onepf.opfiab.billing.BaseBillingProvider;
 import org.onepf.opfiab.billing.BillingProvider;
+import org.onepf.opfiab.listener.DeliveryThread;
+import org.onepf.opfiab.listener.ThreadedBillingListener;
 import org.onepf.opfiab.model.Configuration;
+import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.util.BatchExecutor;
+import org.onepf.opfiab.util.LaneExecutor;
 import org.onepf.opfutils.OPFChecks;
 import org.onepf.opfutils.OPFLog;
 import org.onepf.opfutils.exception.InitException;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.Executors;
 
-import de.greenrobot.event.EventBus;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.PROVIDER;
+
 /**
  * This class is OPFIab library entry point.
  * <p/>
@@ -63,56 +72,105 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
  */
 public final class OPFIab {
 
-    private static final EventBus EVENT_BUS = EventBus.builder()
-            // Must use only one background thread
-            .executorService(Executors.newSingleThreadExecutor())
-            .throwSubscriberException(true)
-            .eventInheritance(true)
-            .logSubscriberExceptions(OPFLog.isEnabled())
-            .build();
+    private static final EventDispatcher DISPATCHER = new EventDispatcher();
 
     private static Context context;
     private static Configuration configuration;
 
-    private static void checkInit() {
-        OPFChecks.checkThread(true);
+    private static void checkConfiguration() {
         if (configuration == null) {
             throw new InitException(false);
         }
     }
 
-    static void register(@NonNull final Object subscriber) {
-        if (!EVENT_BUS.isRegistered(subscriber)) {
-            EVENT_BUS.register(subscriber);
+    private static void checkInit() {
+        OPFChecks.checkThread(true);
+        checkConfiguration();
+    }
+
+    static void register(@NonNull final EventSubscriber subscriber) {
+        register(subscriber, 0);
+    }
+
+    static void register(@NonNull final EventSubscriber subscriber, final int priority) {
+        if (!DISPATCHER.isRegistered(subscriber)) {
+            DISPATCHER.register(subscriber, subscriber.getEventHandlers(), priority);
         }
     }
 
-    static void register(@NonNull final Object subscriber, final int priority) {
-        if (!EVENT_BUS.isRegistered(subscriber)) {
-            EVENT_BUS.register(subscriber, priority);
+    static void register(@NonNull final BillingProvider provider) {
+        if (DISPATCHER.isRegistered(provider)) {
+            return;
+        }
+        final Collection<EventHandler<?>> handlers = new ArrayList<>();
+        handlers.add(new EventHandler<BillingRequest>(BillingRequest.class, PROVIDER) {
+            @Override
+            public void onEvent(@NonNull final BillingRequest event) {
+                provider.onEventAsync(event);
+            }
+        });
+        if (provider instanceof EventSubscriber) {
+            handlers.addAll(((EventSubscriber) provider).getEventHandlers());
         }
+        DISPATCHER.register(provider, handlers, 0);
     }
 
     static void unregister(@NonNull final Object subscriber) {
-        if (EVENT_BUS.isRegistered(subscriber)) {
-            EVENT_BUS.unregister(subscriber);
-        }
+        DISPATCHER.unregister(subscriber);
     }
 
     /**
      * Posts event object for delivery to all subscribers.
      * Intend to be used by {@link BillingProvider} implementations.
+     * <br>
+     * {@link BillingProvider} implementing {@link EventSubscriber} will receive events it
+     * declared handlers for.
      *
      * @param event Event object to deliver.
      */
     public static void post(@NonNull final Object event) {
-        if (EVENT_BUS.hasSubscriberForEvent(event.getClass())) {
-            EVENT_BUS.post(event);
-        } else {
+        if (!DISPATCHER.post(event)) {
             OPFLog.d("Skipping event delivery: %s", event);
         }
     }
 
+    /**
+     * Get executor used to deliver events from background threads to the main thread.
+     * <br>
+     * Intended for monitoring purposes.
+     *
+     * @return BatchExecutor object.
+     * @see Configuration.Builder#setDeliveryBatchInterval(long)
+     */
+    @NonNull
+    public static BatchExecutor getMainExecutor() {
+        return DISPATCHER.getMainExecutor();
+    }
+
+    /**
+     * Get background lanes used by library: setup lane, lane of each {@link BillingProvider}
+     * registered so far, lanes of configured providers where their requests are handled,
+     * purchase verification lane and background listeners lane.
+     * <br>
+     * Intended for monitoring purposes.
+     *
+     * @return Collection of LaneExecutor objects.
+     */
+    @NonNull
+    public static Collection<LaneExecutor> getLanes() {
+        final Collection<LaneExecutor> lanes = DISPATCHER.getLanes();
+        if (configuration != null) {
+            for (final BillingProvider provider : configuration.getProviders()) {
+                if (provider instanceof BaseBillingProvider) {
+                    lanes.addAll(((BaseBillingProvider<?, ?>) provider).getLanes());
+                }
+            }
+        }
+        lanes.add(BaseBillingProvider.getVerificationLane());
+        lanes.add(ThreadedBillingListener.getListenerLane());
+        return lanes;
+    }
+
     /**
      * @return Simple version of {@link IabHelper}.
      * @see {@link SimpleIabHelper}
@@ -124,13 +182,15 @@ public final class OPFIab {
     }
 
     /**
+     * Can be called from any thread, e.g. from {@link DeliveryThread#BACKGROUND} listener.
+     *
      * @return Feature reach version of {@link SimpleIabHelper}.
      * @see AdvancedIabHelper
      * @see #getSimpleHelper()
      */
     @NonNull
     public static AdvancedIabHelper getAdvancedHelper() {
-        checkInit();
+        checkConfiguration();
         return new AdvancedIabHelperImpl();
     }
 
@@ -235,10 +295,12 @@ public final class OPFIab {
             register(BillingEventDispatcher.getInstance());
 
             application.registerActivityLifecycleCallbacks(ActivityMonitor.getInstance());
+            application.registerReceiver(PackageMonitor.getInstance(), PackageMonitor.getFilter());
         }
 
         scheduler.dropQueue();
         billingBase.setConfiguration(configuration);
+        DISPATCHER.getMainExecutor().setInterval(configuration.getDeliveryBatchInterval());
         OPFIab.configuration = configuration;
     }
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.onepf.opfiab;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.onepf.opfutils.OPFChecks;
+
+/**
+ * Tracks installation, removal and changes of packages to keep cached availability of billing
+ * providers up to date.
+ *
+ * @see BillingBase#onPackageChanged(String)
+ */
+final class PackageMonitor extends BroadcastReceiver {
+
+    @Nullable
+    private static PackageMonitor instance;
+
+    @SuppressWarnings({"PMD.NonThreadSafeSingleton"})
+    static PackageMonitor getInstance() {
+        OPFChecks.checkThread(true);
+        if (instance == null) {
+            instance = new PackageMonitor();
+        }
+        return instance;
+    }
+
+    @NonNull
+    static IntentFilter getFilter() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        return filter;
+    }
+
+
+    private PackageMonitor() {
+        super();
+    }
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        final Uri data = intent.getData();
+        if (data == null) {
+            return;
+        }
+        if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+            // Package is being updated, ACTION_PACKAGE_ADDED will follow
+            return;
+        }
+        final String packageName = data.getSchemeSpecificPart();
+        if (packageName != null) {
+            BillingBase.getInstance().onPackageChanged(packageName);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.onepf.opfiab.api.RequestHandle;
+import org.onepf.opfiab.model.billing.Purchase;
+import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.ConsumeResponse;
+import org.onepf.opfiab.model.event.billing.Status;
+import org.onepf.opfiab.util.OPFIabUtils;
+import org.onepf.opfutils.OPFChecks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+final class RequestHandleImpl<R extends BillingResponse> implements RequestHandle<R> {
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+
+    @NonNull
+    private final IabHelperImpl iabHelper;
+    @NonNull
+    private final BillingRequest billingRequest;
+    private final long startTime = SystemClock.elapsedRealtime();
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+    @NonNull
+    private final List<R> responses = new ArrayList<>();
+    @Nullable
+    private Callback<R> callback;
+    @Nullable
+    private R response;
+    private long latency = -1L;
+    private boolean canceled;
+
+    RequestHandleImpl(@NonNull final IabHelperImpl iabHelper,
+                      @NonNull final BillingRequest billingRequest) {
+        this.iabHelper = iabHelper;
+        this.billingRequest = billingRequest;
+    }
+
+    @NonNull
+    IabHelperImpl getHelper() {
+        return iabHelper;
+    }
+
+    /**
+     * Add one of several responses to the request, more are expected.
+     */
+    @SuppressWarnings("unchecked")
+    void offer(@NonNull final BillingResponse billingResponse) {
+        if (!isDone()) {
+            responses.add((R) billingResponse);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void complete(@NonNull final BillingResponse billingResponse) {
+        if (isDone()) {
+            return;
+        }
+        HANDLER.removeCallbacks(timeout);
+        response = (R) billingResponse;
+        responses.add(response);
+        latency = SystemClock.elapsedRealtime() - startTime;
+        if (callback != null) {
+            callback.onResponse(response);
+        }
+    }
+
+    /**
+     * Complete handle with timeout responses for everything which wasn't answered yet.
+     */
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    private void onTimeout() {
+        final List<BillingResponse> timeoutResponses = new ArrayList<>(
+                OPFIabUtils.emptyResponses(null, billingRequest, Status.TIMEOUT));
+        // Purchases from batch which were already answered don't time out
+        for (final R answered : responses) {
+            final Purchase purchase = ((ConsumeResponse) answered).getPurchase();
+            final Iterator<BillingResponse> iterator = timeoutResponses.iterator();
+            while (iterator.hasNext()) {
+                if (purchase.equals(((ConsumeResponse) iterator.next()).getPurchase())) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+        final int size = timeoutResponses.size();
+        for (int i = 0; i < size - 1; i++) {
+            offer(timeoutResponses.get(i));
+        }
+        if (size > 0) {
+            complete(timeoutResponses.get(size - 1));
+        }
+        BillingBase.getInstance().releaseHandle(this);
+    }
+
+    @NonNull
+    @Override
+    public BillingRequest getRequest() {
+        return billingRequest;
+    }
+
+    @Nullable
+    @Override
+    public R getResponse() {
+        OPFChecks.checkThread(true);
+        return response;
+    }
+
+    @NonNull
+    @Override
+    public List<R> getResponses() {
+        OPFChecks.checkThread(true);
+        return Collections.unmodifiableList(responses);
+    }
+
+    @Override
+    public boolean isDone() {
+        OPFChecks.checkThread(true);
+        return response != null || canceled;
+    }
+
+    @Override
+    public boolean isCanceled() {
+        OPFChecks.checkThread(true);
+        return canceled;
+    }
+
+    @Override
+    public long getLatency() {
+        OPFChecks.checkThread(true);
+        return latency;
+    }
+
+    @NonNull
+    @Override
+    public RequestHandle<R> setCallback(@NonNull final Callback<R> callback) {
+        OPFChecks.checkThread(true);
+        this.callback = callback;
+        if (response != null) {
+            callback.onResponse(response);
+        }
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public RequestHandle<R> setTimeout(final long timeout) {
+        OPFChecks.checkThread(true);
+        HANDLER.removeCallbacks(this.timeout);
+        if (!isDone()) {
+            HANDLER.postDelayed(this.timeout, timeout);
+        }
+        return this;
+    }
+
+    @Override
+    public void cancel() {
+        OPFChecks.checkThread(true);
+        if (!isDone()) {
+            canceled = true;
+            HANDLER.removeCallbacks(timeout);
+            BillingBase.getInstance().releaseHandle(this);
+            BillingRequestScheduler.getInstance().cancel(billingRequest);
+        }
+    }
+}
@@ -17,10 +17,13 @@
 package org.onepf.opfiab;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventSubscriber;
 import org.onepf.opfiab.billing.BillingProvider;
 import org.onepf.opfiab.model.BillingProviderInfo;
 import org.onepf.opfiab.model.Configuration;
@@ -29,9 +32,26 @@ import org.onepf.opfiab.model.event.SetupResponse;
 import org.onepf.opfiab.model.event.SetupStartedEvent;
 import org.onepf.opfiab.util.OPFIabUtils;
 import org.onepf.opfutils.OPFChecks;
+import org.onepf.opfutils.OPFLog;
 import org.onepf.opfutils.OPFPreferences;
 import org.onepf.opfutils.OPFUtils;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.MAIN;
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.SETUP;
 import static org.onepf.opfiab.model.event.SetupResponse.Status.FAILED;
 import static org.onepf.opfiab.model.event.SetupResponse.Status.PROVIDER_CHANGED;
 import static org.onepf.opfiab.model.event.SetupResponse.Status.SUCCESS;
@@ -49,10 +69,28 @@ import static org.onepf.opfiab.model.event.SetupResponse.Status.SUCCESS;
  * <li> First suitable provider will be picked according to order it was added in
  * {@link Builder#addBillingProvider(BillingProvider)}.
  * </ul>
+ * All providers are checked concurrently, within {@link Configuration#getSetupTimeout()}.
+ * Provider is picked as soon as all providers with higher priority are found unsuitable.
+ * <p/>
+ * If {@link Configuration#getWarmStartTtl()} is set, recent result of the previous setup is
+ * reported right away and only then verified.
  */
-final class SetupManager {
+final class SetupManager implements EventSubscriber {
 
     private static final String KEY_LAST_PROVIDER = SetupManager.class.getName() + ".last_provider";
+    private static final String KEY_LAST_AUTHORIZED =
+            SetupManager.class.getName() + ".last_authorized";
+    private static final String KEY_LAST_SETUP_TIME =
+            SetupManager.class.getName() + ".last_setup_time";
+
+    // Availability checks are blocking, each provider is checked in its own thread
+    private static final ExecutorService PROBES = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    return new Thread(runnable, "OPFIab-probe");
+                }
+            });
 
     private static SetupManager instance;
 
@@ -90,47 +128,144 @@ final class SetupManager {
         return null;
     }
 
+    /**
+     * Order providers according to priority described in {@link SetupManager}.
+     */
     @NonNull
-    private SetupResponse newResponse(@NonNull final SetupStartedEvent setupStartedEvent) {
-        final Configuration configuration = setupStartedEvent.getConfiguration();
-        final Iterable<BillingProvider> providers = configuration.getProviders();
-        final Iterable<BillingProvider> availableProviders = OPFIabUtils.getAvailable(providers);
-
-        final boolean hadProvider = preferences.contains(KEY_LAST_PROVIDER);
-        // Try previously used provider
-        if (hadProvider) {
-            final String lastProvider = preferences.getString(KEY_LAST_PROVIDER, "");
-            final BillingProviderInfo info = BillingProviderInfo.fromJson(lastProvider);
-            final BillingProvider provider;
-            final SetupResponse setupResponse;
-            if (info != null
-                    && (provider = OPFIabUtils.findWithInfo(availableProviders, info)) != null
-                    && (setupResponse = withProvider(configuration, provider, false)) != null) {
-                return setupResponse;
-            }
+    private Collection<BillingProvider> prioritize(
+            @NonNull final Collection<BillingProvider> providers,
+            @Nullable final BillingProvider lastProvider) {
+        final Collection<BillingProvider> prioritized = new LinkedHashSet<>(providers.size());
+        if (lastProvider != null) {
+            prioritized.add(lastProvider);
         }
-
         final String packageInstaller = OPFUtils.getPackageInstaller(context);
-        // If package installer is set, try it before anything else
         if (!TextUtils.isEmpty(packageInstaller)) {
-            final BillingProvider installerProvider = OPFIabUtils
-                    .withInstaller(availableProviders, packageInstaller);
-            final SetupResponse setupResponse;
-            if (installerProvider != null
-                    && (setupResponse = withProvider(configuration, installerProvider,
-                                                     hadProvider)) != null) {
-                return setupResponse;
+            for (final BillingProvider provider : providers) {
+                if (packageInstaller.equals(provider.getInfo().getInstaller())) {
+                    prioritized.add(provider);
+                }
             }
         }
+        prioritized.addAll(providers);
+        return prioritized;
+    }
+
+    @Nullable
+    private BillingProvider getLastProvider(@NonNull final Iterable<BillingProvider> providers) {
+        final String lastProvider = preferences.getString(KEY_LAST_PROVIDER, "");
+        final BillingProviderInfo info = BillingProviderInfo.fromJson(lastProvider);
+        return info == null ? null : OPFIabUtils.findWithInfo(providers, info);
+    }
 
-        // Pick first available provider that satisfies current configuration
-        for (final BillingProvider provider : availableProviders) {
-            final SetupResponse setupResponse = withProvider(configuration, provider, hadProvider);
-            if (setupResponse != null) {
-                return setupResponse;
+    @NonNull
+    private Future<SetupResponse> probe(@NonNull final Configuration configuration,
+                                        @NonNull final BillingProvider provider,
+                                        final boolean providerChanged) {
+        return PROBES.submit(new Callable<SetupResponse>() {
+            @Override
+            public SetupResponse call() {
+                return provider.isAvailable()
+                        ? withProvider(configuration, provider, providerChanged)
+                        : null;
+            }
+        });
+    }
+
+    @Nullable
+    private SetupResponse await(@NonNull final BillingProvider provider,
+                                @NonNull final Future<SetupResponse> probe,
+                                final long deadline) {
+        try {
+            if (deadline <= 0L) {
+                return probe.get();
             }
+            final long timeout = Math.max(0L, deadline - SystemClock.elapsedRealtime());
+            return probe.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ignore) {
+            OPFLog.e("Setup timeout, skipping provider: %s", provider.getInfo());
+        } catch (ExecutionException exception) {
+            OPFLog.e("Failed to check provider availability.", exception);
+        } catch (InterruptedException ignore) {
+            Thread.currentThread().interrupt();
         }
+        return null;
+    }
 
+    /**
+     * Restore result of the last successful setup, if it's recent enough.
+     *
+     * @see Configuration#getWarmStartTtl()
+     */
+    @Nullable
+    private SetupResponse warmResponse(@NonNull final Configuration configuration) {
+        final long warmStartTtl = configuration.getWarmStartTtl();
+        if (warmStartTtl <= 0L || !preferences.contains(KEY_LAST_SETUP_TIME)) {
+            return null;
+        }
+        final long age;
+        try {
+            final long setupTime = Long.parseLong(preferences.getString(KEY_LAST_SETUP_TIME, ""));
+            age = System.currentTimeMillis() - setupTime;
+        } catch (NumberFormatException exception) {
+            OPFLog.e("", exception);
+            return null;
+        }
+        if (age < 0L || age > warmStartTtl) {
+            return null;
+        }
+        final BillingProvider provider = getLastProvider(configuration.getProviders());
+        final boolean authorized = Boolean.parseBoolean(
+                preferences.getString(KEY_LAST_AUTHORIZED, ""));
+        if (provider == null || !authorized && configuration.skipUnauthorised()) {
+            return null;
+        }
+        return new SetupResponse(configuration, SUCCESS, provider, authorized, true);
+    }
+
+    private void persist(@NonNull final SetupResponse setupResponse) {
+        final BillingProvider provider = setupResponse.getBillingProvider();
+        if (setupResponse.isSuccessful() && provider != null) {
+            final BillingProviderInfo info = provider.getInfo();
+            preferences.put(KEY_LAST_PROVIDER, info.toJson().toString());
+            preferences.put(KEY_LAST_AUTHORIZED, String.valueOf(setupResponse.isAuthorized()));
+            preferences.put(KEY_LAST_SETUP_TIME, String.valueOf(System.currentTimeMillis()));
+        } else {
+            // Last provider is still preferred, but can't be trusted without check
+            preferences.remove(KEY_LAST_SETUP_TIME);
+        }
+    }
+
+    @NonNull
+    private SetupResponse newResponse(@NonNull final SetupStartedEvent setupStartedEvent) {
+        final Configuration configuration = setupStartedEvent.getConfiguration();
+        final Collection<BillingProvider> providers = configuration.getProviders();
+        final boolean hadProvider = preferences.contains(KEY_LAST_PROVIDER);
+        final BillingProvider lastProvider = hadProvider ? getLastProvider(providers) : null;
+        final long setupTimeout = configuration.getSetupTimeout();
+        final long deadline = setupTimeout > 0L ? SystemClock.elapsedRealtime() + setupTimeout : 0L;
+
+        // Check all providers at once, so setup takes as long as the slowest check, not their sum
+        final Map<BillingProvider, Future<SetupResponse>> probes = new LinkedHashMap<>();
+        for (final BillingProvider provider : prioritize(providers, lastProvider)) {
+            final boolean providerChanged = hadProvider && provider != lastProvider;
+            probes.put(provider, probe(configuration, provider, providerChanged));
+        }
+        try {
+            // Only wait for providers with higher priority than the first suitable one
+            for (final Map.Entry<BillingProvider, Future<SetupResponse>> entry
+                    : probes.entrySet()) {
+                final SetupResponse setupResponse = await(entry.getKey(), entry.getValue(),
+                                                          deadline);
+                if (setupResponse != null) {
+                    return setupResponse;
+                }
+            }
+        } finally {
+            for (final Future<SetupResponse> probe : probes.values()) {
+                probe.cancel(false);
+            }
+        }
         return new SetupResponse(configuration, FAILED, null);
     }
 
@@ -145,6 +280,24 @@ final class SetupManager {
         OPFIab.post(new SetupStartedEvent(configuration));
     }
 
+    @NonNull
+    @Override
+    public Collection<EventHandler<?>> getEventHandlers() {
+        return Arrays.<EventHandler<?>>asList(
+                new EventHandler<SetupResponse>(SetupResponse.class, MAIN) {
+                    @Override
+                    public void onEvent(@NonNull final SetupResponse event) {
+                        onEventMainThread(event);
+                    }
+                },
+                new EventHandler<SetupStartedEvent>(SetupStartedEvent.class, SETUP) {
+                    @Override
+                    public void onEvent(@NonNull final SetupStartedEvent event) {
+                        onEventAsync(event);
+                    }
+                });
+    }
+
     @SuppressWarnings("UnusedParameters")
     public void onEventMainThread(@NonNull final SetupResponse setupResponse) {
         setupInProgress = false;
@@ -157,13 +310,18 @@ final class SetupManager {
     }
 
     public void onEventAsync(@NonNull final SetupStartedEvent setupStartedEvent) {
+        final SetupResponse warmResponse = warmResponse(setupStartedEvent.getConfiguration());
+        if (warmResponse != null) {
+            // Let requests run right away, result is verified below
+            OPFIab.post(warmResponse);
+        }
         final SetupResponse setupResponse = newResponse(setupStartedEvent);
-        if (setupResponse.isSuccessful()) {
-            final BillingProvider provider = setupResponse.getBillingProvider();
-            //noinspection ConstantConditions
-            final BillingProviderInfo info = provider.getInfo();
-            preferences.put(KEY_LAST_PROVIDER, info.toJson().toString());
+        persist(setupResponse);
+        if (warmResponse == null
+                || !setupResponse.isSuccessful()
+                || warmResponse.getBillingProvider() != setupResponse.getBillingProvider()
+                || warmResponse.isAuthorized() != setupResponse.isAuthorized()) {
+            OPFIab.post(setupResponse);
         }
-        OPFIab.post(setupResponse);
     }
 }
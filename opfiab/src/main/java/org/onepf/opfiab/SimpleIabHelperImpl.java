@@ -21,15 +21,19 @@ import android.content.Intent;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.onepf.opfiab.api.RequestHandle;
 import org.onepf.opfiab.api.SimpleIabHelper;
 import org.onepf.opfiab.model.event.android.ActivityResultEvent;
 import org.onepf.opfiab.model.event.billing.PurchaseRequest;
+import org.onepf.opfiab.model.event.billing.PurchaseResponse;
 
 class SimpleIabHelperImpl extends IabHelperImpl implements SimpleIabHelper {
 
+    @NonNull
     @Override
-    public void purchase(@NonNull final Activity activity, @NonNull final String sku) {
-        postRequest(new PurchaseRequest(activity, sku));
+    public RequestHandle<PurchaseResponse> purchase(@NonNull final Activity activity,
+                                                    @NonNull final String sku) {
+        return sendRequest(new PurchaseRequest(activity, sku));
     }
 
     @Override
@@ -19,6 +19,7 @@ package org.onepf.opfiab.api;
 import android.app.Activity;
 import android.app.Fragment;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
@@ -30,6 +31,7 @@ import org.onepf.opfiab.listener.OnInventoryListener;
 import org.onepf.opfiab.listener.OnPurchaseListener;
 import org.onepf.opfiab.listener.OnSetupListener;
 import org.onepf.opfiab.listener.OnSkuDetailsListener;
+import org.onepf.opfiab.model.Configuration;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
 import org.onepf.opfiab.model.event.billing.BillingResponse;
 import org.onepf.opfiab.model.event.billing.Status;
@@ -76,4 +78,17 @@ public interface AdvancedIabHelper extends SimpleIabHelper, ListenersSupport {
      * @see #register()
      */
     void unregister();
+
+    /**
+     * Get time passed since last successful response of the supplied type was received.
+     * <br>
+     * Can be used to decide whether response delivered along with registration of a listener is
+     * fresh enough, or new request should be sent.
+     *
+     * @param type Type of the response, either {@link BillingRequest.Type#INVENTORY} or
+     *             {@link BillingRequest.Type#SKU_DETAILS}.
+     * @return Time in milliseconds, -1 if there's no kept response.
+     * @see Configuration#stickyResponses()
+     */
+    long getLastResponseAge(@NonNull final BillingRequest.Type type);
 }
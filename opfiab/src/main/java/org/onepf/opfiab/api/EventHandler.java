@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.onepf.opfiab.api;
+
+import android.support.annotation.NonNull;
+
+import org.onepf.opfiab.OPFIab;
+
+/**
+ * Handler of a single type of events posted with {@link OPFIab#post(Object)}.
+ * <br>
+ * Events of subclasses of {@link #getEventType()} are handled as well.
+ *
+ * @param <E> Type of handled events.
+ * @see EventSubscriber
+ */
+public abstract class EventHandler<E> {
+
+    /**
+     * Thread used to deliver event to handler.
+     */
+    public enum ThreadMode {
+
+        /**
+         * Main thread. Event posted from main thread is delivered immediately.
+         */
+        MAIN,
+        /**
+         * Background thread used to handle billing requests.
+         */
+        PROVIDER,
+        /**
+         * Background thread used to pick billing provider.
+         */
+        SETUP,
+    }
+
+
+    @NonNull
+    private final Class<E> eventType;
+    @NonNull
+    private final ThreadMode threadMode;
+
+    protected EventHandler(@NonNull final Class<E> eventType,
+                           @NonNull final ThreadMode threadMode) {
+        this.eventType = eventType;
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * Get type of handled events.
+     *
+     * @return Class object of events.
+     */
+    @NonNull
+    public Class<E> getEventType() {
+        return eventType;
+    }
+
+    /**
+     * Get thread used to deliver events to this handler.
+     *
+     * @return ThreadMode object.
+     */
+    @NonNull
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * Handle event.
+     *
+     * @param event Event object to handle.
+     */
+    public abstract void onEvent(@NonNull final E event);
+}
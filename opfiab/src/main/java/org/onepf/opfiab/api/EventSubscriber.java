@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.onepf.opfiab.api;
+
+import android.support.annotation.NonNull;
+
+import org.onepf.opfiab.OPFIab;
+import org.onepf.opfiab.billing.BillingProvider;
+
+import java.util.Collection;
+
+/**
+ * Object interested in events posted with {@link OPFIab#post(Object)}.
+ * <br>
+ * {@link BillingProvider} implementing this interface will receive events declared by
+ * {@link #getEventHandlers()} in addition to billing requests.
+ */
+public interface EventSubscriber {
+
+    /**
+     * Get handlers of all events this subscriber is interested in.
+     * <br>
+     * Called once, when subscriber is registered.
+     *
+     * @return Collection of EventHandler objects.
+     */
+    @NonNull
+    Collection<EventHandler<?>> getEventHandlers();
+}
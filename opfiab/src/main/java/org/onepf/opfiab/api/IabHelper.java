@@ -21,7 +21,9 @@ import android.support.annotation.NonNull;
 import org.onepf.opfiab.billing.BillingProvider;
 import org.onepf.opfiab.model.billing.Purchase;
 import org.onepf.opfiab.model.billing.SkuDetails;
+import org.onepf.opfiab.model.event.billing.ConsumeBatchRequest;
 import org.onepf.opfiab.model.event.billing.ConsumeRequest;
+import org.onepf.opfiab.model.event.billing.ConsumeResponse;
 import org.onepf.opfiab.model.event.billing.InventoryRequest;
 import org.onepf.opfiab.model.event.billing.InventoryResponse;
 import org.onepf.opfiab.model.event.billing.PurchaseRequest;
@@ -29,10 +31,13 @@ import org.onepf.opfiab.model.event.billing.PurchaseResponse;
 import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
 import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
 
+import java.util.Collection;
 import java.util.Set;
 
 /**
  * Helper object to interact with {@link BillingProvider}.
+ * <br>
+ * Requests can be sent from any thread, but they are always handled on the main thread.
  */
 public interface IabHelper {
 
@@ -40,18 +45,36 @@ public interface IabHelper {
      * Sends {@link PurchaseRequest} to current {@link BillingProvider}.
      *
      * @param sku Stock Keeping Unit - unique product ID to purchase.
+     * @return Handle of sent request.
      * @see PurchaseResponse
      * @see Purchase
      */
-    void purchase(@NonNull final String sku);
+    @NonNull
+    RequestHandle<PurchaseResponse> purchase(@NonNull final String sku);
 
     /**
      * Sends {@link ConsumeRequest} to current {@link BillingProvider}.
      *
      * @param purchase Purchase object previously retrieved from {@link PurchaseResponse} or {@link InventoryResponse}.
+     * @return Handle of sent request.
      * @see Purchase
      */
-    void consume(@NonNull final Purchase purchase);
+    @NonNull
+    RequestHandle<ConsumeResponse> consume(@NonNull final Purchase purchase);
+
+    /**
+     * Sends single {@link ConsumeBatchRequest} for all supplied purchases to current
+     * {@link BillingProvider}.
+     * <br>
+     * Each purchase will be answered with its own {@link ConsumeResponse}.
+     *
+     * @param purchases Purchase objects previously retrieved from {@link PurchaseResponse} or
+     *                  {@link InventoryResponse}.
+     * @return Handle of sent request, it's done when the last purchase is answered.
+     * @see #consume(Purchase)
+     */
+    @NonNull
+    RequestHandle<ConsumeResponse> consume(@NonNull final Collection<Purchase> purchases);
 
     /**
      * Sends {@link InventoryRequest} to current {@link BillingProvider}.
@@ -61,22 +84,27 @@ public interface IabHelper {
      *
      * @param startOver Flag indicating weather library should load inventory from the start,
      *                  or continue from the point of last successful request.
+     * @return Handle of sent request.
      * @see InventoryResponse
      * @see InventoryResponse#hasMore()
      */
-    void inventory(final boolean startOver);
+    @NonNull
+    RequestHandle<InventoryResponse> inventory(final boolean startOver);
 
     /**
      * Sends {@link SkuDetailsRequest} to current {@link BillingProvider}.
      *
      * @param skus Stock Keeping Units - unique product IDs to query details for.
+     * @return Handle of sent request.
      * @see SkuDetailsResponse
      * @see SkuDetails
      */
-    void skuDetails(@NonNull final Set<String> skus);
+    @NonNull
+    RequestHandle<SkuDetailsResponse> skuDetails(@NonNull final Set<String> skus);
 
     /**
      * Same as {@link #skuDetails(java.util.Set)}.
      */
-    void skuDetails(@NonNull final String... skus);
+    @NonNull
+    RequestHandle<SkuDetailsResponse> skuDetails(@NonNull final String... skus);
 }
@@ -19,13 +19,21 @@ package org.onepf.opfiab.api;
 import android.support.annotation.NonNull;
 
 import org.onepf.opfiab.listener.BillingListener;
+import org.onepf.opfiab.listener.DeliveryThread;
 import org.onepf.opfiab.listener.OnConsumeListener;
 import org.onepf.opfiab.listener.OnInventoryListener;
 import org.onepf.opfiab.listener.OnPurchaseListener;
 import org.onepf.opfiab.listener.OnSetupListener;
 import org.onepf.opfiab.listener.OnSkuDetailsListener;
+import org.onepf.opfiab.model.Configuration;
 import org.onepf.opfiab.model.event.SetupResponse;
+import org.onepf.opfiab.model.event.billing.InventoryResponse;
+import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
 
+/**
+ * Listeners registered without {@link DeliveryThread} receive callbacks on
+ * {@link DeliveryThread#MAIN}.
+ */
 interface ListenersSupport {
 
 
@@ -45,6 +53,18 @@ interface ListenersSupport {
     void addSetupListener(@NonNull final OnSetupListener setupListener,
                           final boolean deliverLast);
 
+    /**
+     * Register callback for setup events delivered on the supplied thread.
+     *
+     * @param setupListener  listener to register.
+     * @param deliverLast    if true and setup was already finished, deliver last
+     *                       {@link SetupResponse}.
+     * @param deliveryThread thread used to deliver callbacks.
+     */
+    void addSetupListener(@NonNull final OnSetupListener setupListener,
+                          final boolean deliverLast,
+                          @NonNull final DeliveryThread deliveryThread);
+
     /**
      * Register callback for purchase events.
      *
@@ -52,6 +72,15 @@ interface ListenersSupport {
      */
     void addPurchaseListener(@NonNull final OnPurchaseListener purchaseListener);
 
+    /**
+     * Register callback for purchase events delivered on the supplied thread.
+     *
+     * @param purchaseListener listener to register.
+     * @param deliveryThread thread used to deliver callbacks.
+     */
+    void addPurchaseListener(@NonNull final OnPurchaseListener purchaseListener,
+                             @NonNull final DeliveryThread deliveryThread);
+
     /**
      * Register callback for inventory events.
      *
@@ -59,6 +88,39 @@ interface ListenersSupport {
      */
     void addInventoryListener(@NonNull final OnInventoryListener inventoryListener);
 
+    /**
+     * Register callback for inventory events delivered on the supplied thread.
+     *
+     * @param inventoryListener listener to register.
+     * @param deliveryThread thread used to deliver callbacks.
+     */
+    void addInventoryListener(@NonNull final OnInventoryListener inventoryListener,
+                              @NonNull final DeliveryThread deliveryThread);
+
+    /**
+     * Register callback for inventory events.
+     *
+     * @param inventoryListener listener to register.
+     * @param deliverLast       if true, immediately deliver last successful
+     *                          {@link InventoryResponse}, if it's kept.
+     * @see Configuration#stickyResponses()
+     */
+    void addInventoryListener(@NonNull final OnInventoryListener inventoryListener,
+                              final boolean deliverLast);
+
+    /**
+     * Register callback for inventory events delivered on the supplied thread.
+     *
+     * @param inventoryListener listener to register.
+     * @param deliverLast       if true, deliver last successful {@link InventoryResponse}, if
+     *                          it's kept.
+     * @param deliveryThread    thread used to deliver callbacks.
+     * @see Configuration#stickyResponses()
+     */
+    void addInventoryListener(@NonNull final OnInventoryListener inventoryListener,
+                              final boolean deliverLast,
+                              @NonNull final DeliveryThread deliveryThread);
+
     /**
      * Register callback for sku details events.
      *
@@ -66,6 +128,39 @@ interface ListenersSupport {
      */
     void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener);
 
+    /**
+     * Register callback for sku details events delivered on the supplied thread.
+     *
+     * @param skuInfoListener listener to register.
+     * @param deliveryThread thread used to deliver callbacks.
+     */
+    void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener,
+                               @NonNull final DeliveryThread deliveryThread);
+
+    /**
+     * Register callback for sku details events.
+     *
+     * @param skuInfoListener listener to register.
+     * @param deliverLast     if true, immediately deliver last successful
+     *                        {@link SkuDetailsResponse}, if it's kept.
+     * @see Configuration#stickyResponses()
+     */
+    void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener,
+                               final boolean deliverLast);
+
+    /**
+     * Register callback for sku details events delivered on the supplied thread.
+     *
+     * @param skuInfoListener listener to register.
+     * @param deliverLast     if true, deliver last successful {@link SkuDetailsResponse}, if it's
+     *                        kept.
+     * @param deliveryThread  thread used to deliver callbacks.
+     * @see Configuration#stickyResponses()
+     */
+    void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener,
+                               final boolean deliverLast,
+                               @NonNull final DeliveryThread deliveryThread);
+
     /**
      * Register callback for consume events.
      *
@@ -73,10 +168,28 @@ interface ListenersSupport {
      */
     void addConsumeListener(@NonNull final OnConsumeListener consumeListener);
 
+    /**
+     * Register callback for consume events delivered on the supplied thread.
+     *
+     * @param consumeListener listener to register.
+     * @param deliveryThread thread used to deliver callbacks.
+     */
+    void addConsumeListener(@NonNull final OnConsumeListener consumeListener,
+                            @NonNull final DeliveryThread deliveryThread);
+
     /**
      * Register callback for all billing events.
      *
      * @param billingListener listener to register.
      */
     void addBillingListener(@NonNull final BillingListener billingListener);
+
+    /**
+     * Register callback for all billing events delivered on the supplied thread.
+     *
+     * @param billingListener listener to register.
+     * @param deliveryThread thread used to deliver callbacks.
+     */
+    void addBillingListener(@NonNull final BillingListener billingListener,
+                            @NonNull final DeliveryThread deliveryThread);
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab.api;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.onepf.opfiab.listener.BillingListener;
+import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.ConsumeBatchRequest;
+import org.onepf.opfiab.model.event.billing.Status;
+
+import java.util.List;
+
+/**
+ * Handle of a single {@link BillingRequest} sent with {@link IabHelper}.
+ * <br>
+ * Allows to handle response for this particular request without registering
+ * {@link BillingListener}.
+ * <p/>
+ * All methods must be called from the main thread.
+ *
+ * @param <R> Type of expected {@link BillingResponse}.
+ */
+public interface RequestHandle<R extends BillingResponse> {
+
+    /**
+     * Callback for the response to the corresponding {@link BillingRequest}.
+     *
+     * @param <R> Type of expected {@link BillingResponse}.
+     */
+    interface Callback<R extends BillingResponse> {
+
+        /**
+         * Called from the main thread once, when response for the request arrives.
+         * <br>
+         * For {@link ConsumeBatchRequest} it's called when the last of its responses arrives.
+         *
+         * @param response BillingResponse object.
+         */
+        void onResponse(@NonNull final R response);
+    }
+
+    /**
+     * Get request this handle belongs to.
+     *
+     * @return BillingRequest object.
+     */
+    @NonNull
+    BillingRequest getRequest();
+
+    /**
+     * Get response to the request.
+     *
+     * @return BillingResponse object, null if response didn't arrive yet. Last response if
+     * request is answered with several ones.
+     */
+    @Nullable
+    R getResponse();
+
+    /**
+     * Get all responses to the request received so far.
+     * <br>
+     * {@link ConsumeBatchRequest} is answered with a response for each of its purchases, other
+     * requests are answered with a single one.
+     *
+     * @return List of BillingResponse objects in order they arrived, empty if none arrived yet.
+     */
+    @NonNull
+    List<R> getResponses();
+
+    /**
+     * Indicates whether this handle is either completed or canceled.
+     *
+     * @return True if no more callbacks will be made by this handle, false otherwise.
+     */
+    boolean isDone();
+
+    /**
+     * Indicates whether this handle was canceled.
+     *
+     * @return True if {@link #cancel()} was called before response arrived, false otherwise.
+     */
+    boolean isCanceled();
+
+    /**
+     * Get time passed between request being sent and corresponding response arriving.
+     *
+     * @return Time in milliseconds, -1 if response didn't arrive yet.
+     */
+    long getLatency();
+
+    /**
+     * Set callback for the response.
+     * <br>
+     * If response already arrived, callback is called immediately.
+     *
+     * @param callback Callback to notify.
+     * @return this object.
+     */
+    @NonNull
+    RequestHandle<R> setCallback(@NonNull final Callback<R> callback);
+
+    /**
+     * Set maximum time to wait for the response.
+     * <br>
+     * If response doesn't arrive in time, handle is completed with empty response with
+     * {@link Status#TIMEOUT}, one for each purchase of {@link ConsumeBatchRequest} which wasn't
+     * answered yet.
+     *
+     * @param timeout Time in milliseconds.
+     * @return this object.
+     */
+    @NonNull
+    RequestHandle<R> setTimeout(final long timeout);
+
+    /**
+     * Cancel this handle, callback will not be called.
+     * <br>
+     * If request is still waiting in queue, it will be dropped. Request which is already being
+     * handled can't be stopped.
+     */
+    void cancel();
+}
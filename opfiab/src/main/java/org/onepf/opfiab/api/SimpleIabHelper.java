@@ -20,6 +20,8 @@ import android.app.Activity;
 import android.content.Intent;
 import android.support.annotation.NonNull;
 
+import org.onepf.opfiab.model.event.billing.PurchaseResponse;
+
 /**
  * Version of {@link IabHelper} featuring {@link #purchase(String)} with activity.
  *
@@ -32,7 +34,10 @@ public interface SimpleIabHelper extends IabHelper, ActivityResultSupport {
      *
      * @param activity Activity object used to start other activities if necessary.
      * @param sku      Stock Keeping Unit - unique product ID to purchase.
+     * @return Handle of sent request.
      * @see #onActivityResult(Activity, int, int, Intent)
      */
-    void purchase(@NonNull final Activity activity, @NonNull final String sku);
+    @NonNull
+    RequestHandle<PurchaseResponse> purchase(@NonNull final Activity activity,
+                                             @NonNull final String sku);
 }
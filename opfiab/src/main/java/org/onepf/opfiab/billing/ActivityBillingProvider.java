@@ -22,9 +22,9 @@ import android.content.Intent;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import org.onepf.opfiab.OPFIab;
 import org.onepf.opfiab.android.OPFIabActivity;
-import org.onepf.opfiab.model.event.RequestHandledEvent;
+import org.onepf.opfiab.api.EventHandler;
+import org.onepf.opfiab.api.EventSubscriber;
 import org.onepf.opfiab.model.event.android.ActivityNewIntentEvent;
 import org.onepf.opfiab.model.event.android.ActivityResultEvent;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
@@ -35,16 +35,21 @@ import org.onepf.opfiab.util.OPFIabUtils;
 import org.onepf.opfiab.verification.PurchaseVerifier;
 import org.onepf.opfutils.OPFLog;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.MAIN;
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.PROVIDER;
+
 /**
  * Extension of {@link BillingProvider} which guarantees non-null {@link Activity} object in {@link #purchase(Activity, String)}.
  * <br>
  * New instance of {@link OPFIabActivity} will be launched if necessary.
  */
 public abstract class ActivityBillingProvider<R extends SkuResolver, V extends PurchaseVerifier>
-        extends BaseBillingProvider<R, V> {
+        extends BaseBillingProvider<R, V> implements EventSubscriber {
 
     private static final long ACTIVITY_TIMEOUT = 1000L; // 1 second
 
@@ -74,6 +79,28 @@ public abstract class ActivityBillingProvider<R extends SkuResolver, V extends P
             @SuppressWarnings("NullableProblems") @NonNull final Activity activity,
             @NonNull final String sku);
 
+    /**
+     * Subclasses overriding this method must include handlers returned by super implementation.
+     */
+    @NonNull
+    @Override
+    public Collection<EventHandler<?>> getEventHandlers() {
+        final Collection<EventHandler<?>> handlers = new ArrayList<>();
+        handlers.add(new EventHandler<ActivityNewIntentEvent>(ActivityNewIntentEvent.class, MAIN) {
+            @Override
+            public void onEvent(@NonNull final ActivityNewIntentEvent event) {
+                onEventMainThread(event);
+            }
+        });
+        handlers.add(new EventHandler<ActivityResultEvent>(ActivityResultEvent.class, PROVIDER) {
+            @Override
+            public void onEvent(@NonNull final ActivityResultEvent event) {
+                onEventAsync(event);
+            }
+        });
+        return handlers;
+    }
+
     @Override
     public void onEventAsync(@NonNull final BillingRequest billingRequest) {
         final PurchaseRequest purchaseRequest;
@@ -101,10 +128,15 @@ public abstract class ActivityBillingProvider<R extends SkuResolver, V extends P
         if (activityRequest == null) {
             // Can't process request without activity
             OPFLog.e("Failed to add activity to request: %s", billingRequest);
-            OPFIab.post(new RequestHandledEvent(billingRequest));
             postEmptyResponse(billingRequest, Status.UNKNOWN_ERROR);
+            postRequestHandled(billingRequest);
+        } else if (!isAvailableCached()) {
+            postEmptyResponse(billingRequest, Status.BILLING_UNAVAILABLE);
+            postRequestHandled(billingRequest);
         } else {
-            super.onEventAsync(activityRequest);
+            handleRequest(activityRequest);
+            // Library tracks the exact request it has sent, not its copy with activity
+            postRequestHandled(billingRequest);
         }
     }
 
@@ -17,58 +17,213 @@
 package org.onepf.opfiab.billing;
 
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
+import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.IInterface;
 import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.onepf.opfiab.util.LaneExecutor;
 import org.onepf.opfutils.OPFLog;
 import org.onepf.opfutils.OPFUtils;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.concurrent.Semaphore;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper class intended to simplify interaction with {@link Service} declared using Android Interface Definition Language (AIDL).
+ * <br>
+ * Binding is asynchronous: {@link ServiceCallback}s supplied while service is being bound are
+ * queued and executed in order on this helper lane once connection attempt is finished. Blocking
+ * calls wait in the same queue, but are released directly, without going through the lane.
+ * <br>
+ * Dead service is re-bound right away. Idle service is unbound after {@link #getKeepAlive()},
+ * learned from gaps between its uses, or right away when system is low on memory.
+ * <br>
+ * {@link ServiceCall}s failed due to binder errors can be retried with
+ * {@link #call(ServiceCall, int)}.
  *
  * @param <AIDL> AIDL class to bind to.
  */
 public abstract class AidlBillingHelper<AIDL extends IInterface> implements ServiceConnection {
 
+    /**
+     * Callback receiving {@link IInterface} instance once it's connected.
+     *
+     * @param <AIDL> AIDL class to bind to.
+     */
+    public interface ServiceCallback<AIDL extends IInterface> {
+
+        /**
+         * Called from helper lane once connection attempt is finished.
+         *
+         * @param service {@link IInterface} instance, null if connection failed.
+         */
+        void onService(@Nullable final AIDL service);
+    }
+
+    /**
+     * Single call to service which can be safely repeated.
+     *
+     * @param <AIDL> AIDL class to bind to.
+     * @param <T>    Call result type.
+     */
+    public interface ServiceCall<AIDL extends IInterface, T> {
+
+        /**
+         * Make a call to service.
+         *
+         * @param service {@link IInterface} instance to call.
+         * @return Call result.
+         * @throws RemoteException if binder call failed.
+         */
+        T call(@NonNull final AIDL service) throws RemoteException;
+    }
+
     private static final Handler HANDLER = new Handler(Looper.getMainLooper());
-    private static final long CONNECTION_TIMEOUT = 3000L; // 3 seconds
-    private static final long DISCONNECT_DELAY = 60000L; // 1 minute
+    private static final long DEFAULT_BIND_TIMEOUT = 3000L; // 3 seconds
+    private static final long DEFAULT_IDLE_TIMEOUT = 300000L; // 5 minutes
+    private static final long INITIAL_KEEP_ALIVE = 60000L; // 1 minute
+    private static final long MIN_KEEP_ALIVE = 5000L; // 5 seconds
+    // Uses closer than this are considered a single burst
+    private static final long MIN_GAP = 1000L; // 1 second
+    private static final int GAP_SAMPLES = 32;
+    private static final int MIN_GAP_SAMPLES = 4;
+    private static final float KEEP_ALIVE_PERCENTILE = 0.9f;
+    private static final long RETRY_BASE_DELAY = 20L; // milliseconds
+    private static final long RETRY_MAX_DELAY = 500L; // milliseconds
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Callback releasing thread which waits for connection attempt to finish.
+     *
+     * @param <AIDL> AIDL class to bind to.
+     */
+    private static final class ServiceWaiter<AIDL extends IInterface>
+            implements ServiceCallback<AIDL> {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        @Nullable
+        private volatile AIDL service;
+
+        @Override
+        public void onService(@Nullable final AIDL service) {
+            this.service = service;
+            latch.countDown();
+        }
+
+        @Nullable
+        AIDL await(final long timeout) {
+            try {
+                latch.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException exception) {
+                OPFLog.d("", exception);
+                Thread.currentThread().interrupt();
+            }
+            return service;
+        }
+    }
 
-    private final Semaphore serviceSemaphore = new Semaphore(0);
+    private final Object connectionLock = new Object();
+    // Callbacks and blocking calls waiting for service connection, guarded by connectionLock
+    private final Queue<ServiceCallback<AIDL>> pendingCallbacks = new LinkedList<>();
     private final Runnable disconnect = new Runnable() {
         @Override
         public void run() {
-            if (service != null) {
-                context.unbindService(AidlBillingHelper.this);
-                service = null;
+            unbindIdle();
+        }
+    };
+    private final Runnable bindTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (connectionLock) {
+                if (binding) {
+                    OPFLog.e("AIDL service connection timeout: %s",
+                             OPFUtils.toString(getServiceIntent()));
+                    unbind();
+                    finishBind(null);
+                }
+            }
+        }
+    };
+    private final IBinder.DeathRecipient deathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            OPFLog.d("AIDL service died: %s", asInterface.getDeclaringClass());
+            reconnect();
+        }
+    };
+    private final ComponentCallbacks2 componentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(final int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                unbindIdle();
             }
         }
+
+        @Override
+        public void onLowMemory() {
+            unbindIdle();
+        }
+
+        @Override
+        public void onConfigurationChanged(final Configuration newConfig) {
+            // ignore
+        }
     };
+    // Recent gaps between service uses, guarded by itself
+    private final long[] gaps = new long[GAP_SAMPLES];
+    // Callbacks and blocking calls which are using service right now
+    private final AtomicInteger activeCallbacks = new AtomicInteger();
     @NonNull
     protected final Context context;
     @NonNull
     private final Method asInterface;
+    @NonNull
+    private final LaneExecutor lane;
     @Nullable
     private volatile AIDL service;
+    // Whether bindService() succeeded and wasn't followed by unbindService(), guarded
+    private boolean bound;
+    // Whether service is being bound, guarded by connectionLock
+    private boolean binding;
+    private volatile long bindTimeoutDelay = DEFAULT_BIND_TIMEOUT;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int gapCount;
+    private int gapIndex;
+    private long lastUseTime;
+    // Metrics, guarded by connectionLock
+    private int bindCount;
+    private int connectCount;
+    private long bindStartTime;
+    private long totalBindLatency;
+    private long connectedSince;
+    private long connectedTime;
 
     protected AidlBillingHelper(@NonNull final Context context, @NonNull final Class<AIDL> clazz) {
         this.context = context.getApplicationContext();
+        this.lane = new LaneExecutor("OPFIab-" + clazz.getSimpleName());
         final Class<?>[] classes = clazz.getDeclaredClasses();
         for (final Class<?> declaredClass : classes) {
             if ("Stub".equals(declaredClass.getSimpleName())
@@ -86,7 +241,218 @@ public abstract class AidlBillingHelper<AIDL extends IInterface> implements Serv
 
     private void scheduleDisconnect() {
         HANDLER.removeCallbacks(disconnect);
-        HANDLER.postDelayed(disconnect, DISCONNECT_DELAY);
+        final long keepAlive = getKeepAlive();
+        if (keepAlive > 0L) {
+            HANDLER.postDelayed(disconnect, keepAlive);
+        }
+    }
+
+    private void recordUse() {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (gaps) {
+            final long gap = now - lastUseTime;
+            if (lastUseTime > 0L && gap >= MIN_GAP) {
+                gaps[gapIndex] = gap;
+                gapIndex = (gapIndex + 1) % GAP_SAMPLES;
+                gapCount = Math.min(gapCount + 1, GAP_SAMPLES);
+            }
+            lastUseTime = now;
+        }
+    }
+
+    private void unbindIdle() {
+        synchronized (connectionLock) {
+            // Don't interrupt binding or callbacks which are using service
+            if (service != null && !binding && activeCallbacks.get() == 0
+                    && lane.getQueueSize() == 0) {
+                OPFLog.d("Unbinding idle service: %s", asInterface.getDeclaringClass());
+                HANDLER.removeCallbacks(disconnect);
+                unbind();
+            }
+        }
+    }
+
+    /**
+     * Start binding to service unless it's already in progress.
+     * <br>
+     * Must be called with connectionLock held.
+     *
+     * @return True if binding is in progress, false if service can't be bound.
+     */
+    private boolean startBind() {
+        if (binding) {
+            return true;
+        }
+        final Intent serviceIntent = getServiceIntent();
+        final PackageManager packageManager = context.getPackageManager();
+        final Collection<ResolveInfo> infos = packageManager.queryIntentServices(serviceIntent, 0);
+        if (infos == null || infos.isEmpty()
+                || !context.bindService(serviceIntent, this, Context.BIND_AUTO_CREATE)) {
+            OPFLog.d("Can't bind to service: %s", asInterface.getDeclaringClass());
+            return false;
+        }
+        bound = true;
+        // Memory pressure matters only while service is bound
+        context.registerComponentCallbacks(componentCallbacks);
+        bindCount++;
+        bindStartTime = SystemClock.elapsedRealtime();
+        binding = true;
+        HANDLER.postDelayed(bindTimeout, bindTimeoutDelay);
+        return true;
+    }
+
+    /**
+     * Must be called with connectionLock held.
+     */
+    private void finishBind(@Nullable final AIDL service) {
+        HANDLER.removeCallbacks(bindTimeout);
+        this.service = service;
+        if (service != null) {
+            connectedSince = SystemClock.elapsedRealtime();
+            connectCount++;
+            totalBindLatency += connectedSince - bindStartTime;
+        }
+        binding = false;
+        // Still holding lock, so no new callback can jump the queue
+        ServiceCallback<AIDL> callback;
+        while ((callback = pendingCallbacks.poll()) != null) {
+            if (callback instanceof ServiceWaiter) {
+                // Blocked thread might be the lane itself
+                callback.onService(service);
+            } else {
+                execute(callback, service);
+            }
+        }
+    }
+
+    /**
+     * Must be called with connectionLock held.
+     */
+    private void unbind() {
+        final AIDL service = this.service;
+        this.service = null;
+        if (service != null) {
+            service.asBinder().unlinkToDeath(deathRecipient, 0);
+            connectedTime += SystemClock.elapsedRealtime() - connectedSince;
+        }
+        if (bound) {
+            bound = false;
+            context.unregisterComponentCallbacks(componentCallbacks);
+            try {
+                context.unbindService(this);
+            } catch (IllegalArgumentException exception) {
+                OPFLog.d("", exception);
+            }
+        }
+    }
+
+    /**
+     * Get delay before next retry, randomized to spread retries of concurrent calls.
+     *
+     * @param attempt Number of failed attempts so far, starting with 1.
+     * @return Time in milliseconds.
+     */
+    private static long getRetryDelay(final int attempt) {
+        final long maxDelay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << attempt);
+        return maxDelay / 2 + (long) (RANDOM.nextDouble() * maxDelay / 2);
+    }
+
+    private void reconnect() {
+        synchronized (connectionLock) {
+            if (!bound || binding) {
+                // Service was unbound on purpose or is already being bound
+                return;
+            }
+            unbind();
+            startBind();
+        }
+    }
+
+    private void execute(@NonNull final ServiceCallback<AIDL> callback,
+                         @Nullable final AIDL service) {
+        lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                activeCallbacks.incrementAndGet();
+                try {
+                    callback.onService(service);
+                } finally {
+                    activeCallbacks.decrementAndGet();
+                    // Keep alive counts from the end of the last use
+                    if (service != null) {
+                        scheduleDisconnect();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Make a blocking call to service, retrying it on binder failures.
+     * <br>
+     * Dead service is re-bound and call is repeated right away, other failures are retried after
+     * a short randomized delay.
+     * Calls which are not idempotent must use 0 retries.
+     *
+     * @param call    Call to make.
+     * @param retries Maximum number of retries.
+     * @param <T>     Call result type.
+     * @return Call result, null if service couldn't be connected or all attempts failed.
+     */
+    @Nullable
+    protected <T> T call(@NonNull final ServiceCall<AIDL, T> call, final int retries) {
+        // Idle service must not be unbound in the middle of the call
+        activeCallbacks.incrementAndGet();
+        try {
+            return callService(call, retries);
+        } finally {
+            activeCallbacks.decrementAndGet();
+            if (service != null) {
+                scheduleDisconnect();
+            }
+        }
+    }
+
+    @Nullable
+    private <T> T callService(@NonNull final ServiceCall<AIDL, T> call, final int retries) {
+        for (int attempt = 1; ; attempt++) {
+            final AIDL service = getService();
+            if (service == null) {
+                return null;
+            }
+            try {
+                return call.call(service);
+            } catch (DeadObjectException exception) {
+                OPFLog.d("AIDL service died during call. Attempt: %d", attempt);
+                if (attempt > retries) {
+                    OPFLog.e("", exception);
+                    return null;
+                }
+                synchronized (connectionLock) {
+                    // Service might be already reconnected by DeathRecipient
+                    if (this.service == service) {
+                        reconnect();
+                    }
+                }
+            } catch (TransactionTooLargeException exception) {
+                // Repeating the same call won't help
+                OPFLog.e("", exception);
+                return null;
+            } catch (RemoteException exception) {
+                OPFLog.d("AIDL call failed. Attempt: %d", attempt);
+                if (attempt > retries) {
+                    OPFLog.e("", exception);
+                    return null;
+                }
+                try {
+                    Thread.sleep(getRetryDelay(attempt));
+                } catch (InterruptedException interruptedException) {
+                    OPFLog.d("", interruptedException);
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
     }
 
     /**
@@ -97,56 +463,215 @@ public abstract class AidlBillingHelper<AIDL extends IInterface> implements Serv
     @NonNull
     protected abstract Intent getServiceIntent();
 
+    /**
+     * Get lane used to execute {@link ServiceCallback}s.
+     *
+     * @return LaneExecutor object.
+     */
+    @NonNull
+    public LaneExecutor getLane() {
+        return lane;
+    }
+
+    /**
+     * Set how long service connection may take before it's considered failed.
+     *
+     * @param bindTimeout Time in milliseconds, must be positive.
+     */
+    public void setBindTimeout(final long bindTimeout) {
+        if (bindTimeout <= 0L) {
+            throw new IllegalArgumentException("Bind timeout must be positive.");
+        }
+        this.bindTimeoutDelay = bindTimeout;
+    }
+
+    public long getBindTimeout() {
+        return bindTimeoutDelay;
+    }
+
+    /**
+     * Set maximum time service stays bound after it was last used.
+     *
+     * @param idleTimeout Time in milliseconds, 0 or less to never unbind idle service.
+     * @see #getKeepAlive()
+     */
+    public void setIdleTimeout(final long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Get how long service currently stays bound after it was last used.
+     * <br>
+     * Long enough to cover most of the recent gaps between service uses, but not longer than
+     * {@link #getIdleTimeout()}. If most gaps exceed it anyway, service is unbound quickly.
+     *
+     * @return Time in milliseconds, 0 or less if idle service is never unbound.
+     */
+    public long getKeepAlive() {
+        final long idleTimeout = this.idleTimeout;
+        if (idleTimeout <= 0L) {
+            return idleTimeout;
+        }
+        final long[] sorted;
+        synchronized (gaps) {
+            if (gapCount < MIN_GAP_SAMPLES) {
+                return Math.min(INITIAL_KEEP_ALIVE, idleTimeout);
+            }
+            sorted = Arrays.copyOf(gaps, gapCount);
+        }
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(sorted.length * KEEP_ALIVE_PERCENTILE) - 1;
+        final long keepAlive = sorted[index] + MIN_GAP;
+        if (keepAlive <= idleTimeout) {
+            return Math.max(MIN_KEEP_ALIVE, keepAlive);
+        }
+        if (sorted[sorted.length / 2] + MIN_GAP <= idleTimeout) {
+            // Most of the gaps are still covered
+            return idleTimeout;
+        }
+        return Math.min(MIN_KEEP_ALIVE, idleTimeout);
+    }
+
+    /**
+     * Get number of times service binding was started.
+     *
+     * @return Number of binds.
+     */
+    public int getBindCount() {
+        synchronized (connectionLock) {
+            return bindCount;
+        }
+    }
+
+    /**
+     * Get average time it took to connect to service.
+     *
+     * @return Time in milliseconds, 0 if service was never connected.
+     */
+    public long getAverageBindLatency() {
+        synchronized (connectionLock) {
+            return connectCount == 0 ? 0L : totalBindLatency / connectCount;
+        }
+    }
+
+    /**
+     * Get total time service was connected, including current connection.
+     *
+     * @return Time in milliseconds.
+     */
+    public long getConnectedTime() {
+        synchronized (connectionLock) {
+            return service == null
+                    ? connectedTime
+                    : connectedTime + SystemClock.elapsedRealtime() - connectedSince;
+        }
+    }
+
+    /**
+     * Start binding to service without waiting for it, e.g. to warm it up before first use.
+     */
+    public void bind() {
+        synchronized (connectionLock) {
+            if (service == null) {
+                startBind();
+            } else {
+                scheduleDisconnect();
+            }
+        }
+    }
+
+    /**
+     * Non-blocking call to retrieve {@link IInterface} instance to interact with {@link Service}.
+     * <br>
+     * Callbacks are executed on {@link #getLane()} in order they were supplied.
+     *
+     * @param callback Callback to receive {@link IInterface} instance.
+     */
+    public void getService(@NonNull final ServiceCallback<AIDL> callback) {
+        recordUse();
+        synchronized (connectionLock) {
+            final AIDL service = this.service;
+            if (service == null && startBind()) {
+                pendingCallbacks.add(callback);
+                return;
+            }
+            if (service != null) {
+                scheduleDisconnect();
+            }
+            execute(callback, service);
+        }
+    }
+
     /**
      * Blocking call to retrieve {@link IInterface} instance to interact with {@link Service}.
+     * <br>
+     * Waits in the same queue as callbacks supplied to {@link #getService(ServiceCallback)}, but
+     * is released directly, so it's safe to call from {@link #getLane()}.
      *
      * @return {@link IInterface} instance if {@link Service} connection was successful, null otherwise.
+     * @see #getService(ServiceCallback)
      */
     @Nullable
     public AIDL getService() {
+        recordUse();
         final AIDL service = this.service;
         if (service != null) {
             scheduleDisconnect();
             return service;
         }
-
-        final Intent serviceIntent = getServiceIntent();
-        final PackageManager packageManager = context.getPackageManager();
-        final Collection<ResolveInfo> infos = packageManager.queryIntentServices(serviceIntent, 0);
-        if (infos == null || infos.isEmpty()
-                || !context.bindService(getServiceIntent(), this, Context.BIND_AUTO_CREATE)) {
-            OPFLog.d("Can't bind to service: %s", asInterface.getDeclaringClass());
-            return null;
-        }
-        serviceSemaphore.drainPermits();
-        try {
-            if (!serviceSemaphore.tryAcquire(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS)) {
-                OPFLog.e("AIDL service connection timeout: %s", OPFUtils.toString(serviceIntent));
+        final ServiceWaiter<AIDL> waiter = new ServiceWaiter<>();
+        synchronized (connectionLock) {
+            final AIDL connectedService = this.service;
+            if (connectedService != null) {
+                scheduleDisconnect();
+                return connectedService;
             }
-        } catch (InterruptedException exception) {
-            OPFLog.d("", exception);
+            if (!startBind()) {
+                return null;
+            }
+            pendingCallbacks.add(waiter);
         }
-        return this.service;
+        // Bind timeout releases waiter too, own timeout is just a safety net
+        return waiter.await(bindTimeoutDelay * 2);
     }
 
     @Override
     public void onServiceConnected(final ComponentName name, final IBinder service) {
+        AIDL aidl = null;
         //https://code.google.com/p/android/issues/detail?id=153406
         //noinspection TryWithIdenticalCatches
         try {
             //noinspection unchecked
-            this.service = (AIDL) asInterface.invoke(null, service);
+            aidl = (AIDL) asInterface.invoke(null, service);
+            service.linkToDeath(deathRecipient, 0);
         } catch (IllegalAccessException exception) {
             OPFLog.e("", exception);
         } catch (InvocationTargetException exception) {
             OPFLog.e("", exception);
+        } catch (RemoteException exception) {
+            // Service already died, will be reconnected on disconnect
+            OPFLog.e("", exception);
+        }
+        synchronized (connectionLock) {
+            finishBind(aidl);
         }
         scheduleDisconnect();
-        serviceSemaphore.release();
     }
 
     @Override
     public void onServiceDisconnected(final ComponentName name) {
-        service = null;
+        OPFLog.d("AIDL service disconnected: %s", name);
+        reconnect();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: binds %d, latency %dms, connected %dms, keep alive %dms",
+                             asInterface.getDeclaringClass().getSimpleName(), getBindCount(),
+                             getAverageBindLatency(), getConnectedTime(), getKeepAlive());
     }
 }
@@ -31,6 +31,7 @@ import org.onepf.opfiab.model.billing.SkuDetails;
 import org.onepf.opfiab.model.event.RequestHandledEvent;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
 import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.ConsumeBatchRequest;
 import org.onepf.opfiab.model.event.billing.ConsumeRequest;
 import org.onepf.opfiab.model.event.billing.ConsumeResponse;
 import org.onepf.opfiab.model.event.billing.InventoryRequest;
@@ -41,6 +42,7 @@ import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
 import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
 import org.onepf.opfiab.model.event.billing.Status;
 import org.onepf.opfiab.sku.SkuResolver;
+import org.onepf.opfiab.util.LaneExecutor;
 import org.onepf.opfiab.util.OPFIabUtils;
 import org.onepf.opfiab.verification.PurchaseVerifier;
 import org.onepf.opfiab.verification.VerificationResult;
@@ -49,6 +51,7 @@ import org.onepf.opfutils.OPFUtils;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -79,12 +82,34 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
     @SuppressWarnings({"UnnecessaryBoxing", "MagicNumber"})
     protected static final int REQUEST_CODE = Integer.valueOf(13685093);
 
+    /**
+     * Lane shared by all providers to verify purchases, since verification might be lengthy.
+     */
+    private static final LaneExecutor VERIFICATION_LANE = new LaneExecutor("OPFIab-verification");
+
+    /**
+     * Get lane used to verify purchases with {@link PurchaseVerifier}.
+     *
+     * @return LaneExecutor object.
+     */
+    @NonNull
+    public static LaneExecutor getVerificationLane() {
+        return VERIFICATION_LANE;
+    }
+
     @NonNull
     protected final Context context;
     @NonNull
     protected final R skuResolver;
     @NonNull
     protected final V purchaseVerifier;
+    @NonNull
+    private final Object availabilityLock = new Object();
+    // Cached result of isAvailable(), null if it has to be checked again
+    @Nullable
+    private Boolean available;
+    // Incremented on each invalidation to discard results of checks started before it
+    private int availabilityGeneration;
 
     protected BaseBillingProvider(@NonNull final Context context,
                                   @NonNull final R skuResolver,
@@ -138,6 +163,22 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
      */
     protected abstract void consume(@NonNull final Purchase purchase);
 
+    /**
+     * Consume specified Purchases.
+     * <br>
+     * Default implementation calls {@link #consume(Purchase)} for each purchase.
+     * Override if {@link BillingProvider} supports consuming several purchases at once.
+     *
+     * @param purchases Purchase objects to consume, already resolved with supplied
+     *                  {@link SkuResolver}.
+     * @see #postConsumeResponse(Status, Purchase)
+     */
+    protected void consume(@NonNull final Collection<Purchase> purchases) {
+        for (final Purchase purchase : purchases) {
+            consume(purchase);
+        }
+    }
+
     /**
      * Entry point for all incoming billing requests.
      * <br>
@@ -164,6 +205,24 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
                 resolvedSku = skuResolver.resolve(purchase.getSku());
                 consume(OPFIabUtils.substituteSku(purchase, resolvedSku));
                 break;
+            case CONSUME_BATCH:
+                final ConsumeBatchRequest batchRequest = (ConsumeBatchRequest) billingRequest;
+                final Collection<Purchase> resolvedPurchases = new ArrayList<>();
+                for (final Purchase batchPurchase : batchRequest.getPurchases()) {
+                    final BillingProviderInfo batchProviderInfo = batchPurchase.getProviderInfo();
+                    if (getInfo().equals(batchProviderInfo)) {
+                        resolvedPurchases.add(OPFIabUtils.resolve(skuResolver, batchPurchase));
+                    } else {
+                        OPFLog.e("Attempt to consume purchase from wrong provider: %s.\n" +
+                                         "Current provider: %s", batchProviderInfo, getInfo());
+                        postResponse(new ConsumeResponse(ITEM_UNAVAILABLE, getInfo(),
+                                                         batchPurchase));
+                    }
+                }
+                if (!resolvedPurchases.isEmpty()) {
+                    consume(resolvedPurchases);
+                }
+                break;
             case PURCHASE:
                 final PurchaseRequest purchaseRequest = (PurchaseRequest) billingRequest;
                 final Activity activity = purchaseRequest.getActivity();
@@ -200,6 +259,24 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
         OPFIab.post(billingResponse);
     }
 
+    /**
+     * Notify library that supplied request is handled.
+     * <br>
+     * Event is sent from {@link #getVerificationLane()}, after all responses which are still
+     * being verified, so it never outruns them.
+     *
+     * @param billingRequest Handled request.
+     * @see RequestHandledEvent
+     */
+    protected void postRequestHandled(@NonNull final BillingRequest billingRequest) {
+        VERIFICATION_LANE.execute(new Runnable() {
+            @Override
+            public void run() {
+                OPFIab.post(new RequestHandledEvent(billingRequest));
+            }
+        });
+    }
+
     /**
      * Construct and send empty {@link BillingResponse}.
      *
@@ -209,7 +286,10 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
      */
     protected void postEmptyResponse(@NonNull final BillingRequest billingRequest,
                                      @NonNull final Status status) {
-        postResponse(OPFIabUtils.emptyResponse(getInfo(), billingRequest, status));
+        for (final BillingResponse response : OPFIabUtils.emptyResponses(getInfo(),
+                                                                         billingRequest, status)) {
+            postResponse(response);
+        }
     }
 
     /**
@@ -242,6 +322,8 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
      * <br>
      * SKUs available from {@link Purchase#getSku()} will be reverted with supplied
      * {@link SkuResolver}.
+     * <br>
+     * Purchases are verified in {@link #getVerificationLane()}, response is sent afterwards.
      *
      * @param status    Status object to use in response.
      * @param inventory Can be null. Collection of Purchase objects to add to response.
@@ -251,19 +333,28 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
     protected void postInventoryResponse(@NonNull final Status status,
                                          @Nullable final Iterable<Purchase> inventory,
                                          final boolean hasMore) {
-        final InventoryResponse response;
-        if (inventory == null) {
-            response = new InventoryResponse(status, getInfo(), null, hasMore);
-        } else {
-            final Map<Purchase, VerificationResult> verifiedRevertedInventory = new HashMap<>();
-            for (final Purchase purchase : inventory) {
-                final VerificationResult result = purchaseVerifier.verify(purchase);
-                final Purchase revertedPurchase = OPFIabUtils.revert(skuResolver, purchase);
-                verifiedRevertedInventory.put(revertedPurchase, result);
+        // Responses without purchases use the same lane to preserve their order
+        VERIFICATION_LANE.execute(new Runnable() {
+            @Override
+            public void run() {
+                final InventoryResponse response;
+                if (inventory == null) {
+                    response = new InventoryResponse(status, getInfo(), null, hasMore);
+                } else {
+                    final Map<Purchase, VerificationResult> verifiedRevertedInventory =
+                            new HashMap<>();
+                    for (final Purchase purchase : inventory) {
+                        final VerificationResult result = purchaseVerifier.verify(purchase);
+                        final Purchase revertedPurchase = OPFIabUtils.revert(skuResolver,
+                                                                             purchase);
+                        verifiedRevertedInventory.put(revertedPurchase, result);
+                    }
+                    response = new InventoryResponse(status, getInfo(), verifiedRevertedInventory,
+                                                     hasMore);
+                }
+                postResponse(response);
             }
-            response = new InventoryResponse(status, getInfo(), verifiedRevertedInventory, hasMore);
-        }
-        postResponse(response);
+        });
     }
 
     /**
@@ -275,18 +366,24 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
      * @param status   Status object to use in response.
      * @param purchase Can be null. Purchase object to add to response.
      * @see PurchaseResponse
+     * @see #postInventoryResponse(Status, Iterable, boolean)
      */
     protected void postPurchaseResponse(@NonNull final Status status,
                                         @Nullable final Purchase purchase) {
-        final PurchaseResponse response;
-        if (purchase == null) {
-            response = new PurchaseResponse(status, getInfo(), null, null);
-        } else {
-            final VerificationResult result = purchaseVerifier.verify(purchase);
-            final Purchase revertedPurchase = OPFIabUtils.revert(skuResolver, purchase);
-            response = new PurchaseResponse(status, getInfo(), revertedPurchase, result);
-        }
-        postResponse(response);
+        VERIFICATION_LANE.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PurchaseResponse response;
+                if (purchase == null) {
+                    response = new PurchaseResponse(status, getInfo(), null, null);
+                } else {
+                    final VerificationResult result = purchaseVerifier.verify(purchase);
+                    final Purchase revertedPurchase = OPFIabUtils.revert(skuResolver, purchase);
+                    response = new PurchaseResponse(status, getInfo(), revertedPurchase, result);
+                }
+                postResponse(response);
+            }
+        });
     }
 
     /**
@@ -304,14 +401,116 @@ public abstract class BaseBillingProvider<R extends SkuResolver, V extends Purch
         postResponse(new ConsumeResponse(status, getInfo(), revertedPurchase));
     }
 
+    /**
+     * Get packages which availability of this provider depends on.
+     * <br>
+     * Cached result of {@link #isAvailable()} is dropped whenever one of these packages is
+     * installed, removed or changed.
+     *
+     * @return Collection of package names. By default contains
+     * {@link BillingProviderInfo#getPackageName()} if it's set.
+     * @see #invalidateAvailability(String)
+     */
+    @NonNull
+    protected Collection<String> getPackages() {
+        final String packageName = getInfo().getPackageName();
+        return TextUtils.isEmpty(packageName)
+                ? Collections.<String>emptyList()
+                : Collections.singletonList(packageName);
+    }
+
+    /**
+     * Drop cached availability of this provider if it depends on supplied package.
+     *
+     * @param packageName Name of installed, removed or changed package.
+     * @return True if cached availability was dropped, false otherwise.
+     * @see #getPackages()
+     */
+    public boolean invalidateAvailability(@NonNull final String packageName) {
+        if (!getPackages().contains(packageName)) {
+            return false;
+        }
+        synchronized (availabilityLock) {
+            available = null;
+            availabilityGeneration++;
+        }
+        OPFLog.d("Availability invalidated: %s, package: %s", this, packageName);
+        return true;
+    }
+
+    /**
+     * Indicates whether negative result of {@link #isAvailable()} can be reused.
+     * <br>
+     * Should return false if availability check can fail transiently, e.g. it relies on IPC.
+     *
+     * @return True if only package changes can make unavailable provider available, false
+     * otherwise. Default implementation returns true.
+     * @see #isAvailableCached()
+     */
+    protected boolean isUnavailabilityCacheable() {
+        return true;
+    }
+
+    /**
+     * Same as {@link #isAvailable()}, but result is reused until
+     * {@link #invalidateAvailability(String)} drops it.
+     * <br>
+     * Negative result is never reused if {@link #isUnavailabilityCacheable()} returns false.
+     *
+     * @return True if provider is available, false otherwise.
+     */
+    protected boolean isAvailableCached() {
+        final int generation;
+        synchronized (availabilityLock) {
+            if (available != null) {
+                return available;
+            }
+            generation = availabilityGeneration;
+        }
+        final boolean result = isAvailable();
+        if (!result && !isUnavailabilityCacheable()) {
+            return false;
+        }
+        synchronized (availabilityLock) {
+            if (generation == availabilityGeneration) {
+                available = result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hint that requests are expected soon, e.g. this provider was just picked by setup or
+     * {@link org.onepf.opfiab.api.ActivityIabHelper} was just created.
+     * <br>
+     * Called from the main thread, must not block. Default implementation does nothing.
+     */
+    @SuppressWarnings("PMD.EmptyMethodInAbstractClassShouldBeAbstract")
+    public void warmUp() {
+        // ignore
+    }
+
+    /**
+     * Get lanes this provider uses on its own, besides the one library delivers its requests on,
+     * e.g. lane of a service helper where requests are actually handled.
+     * <br>
+     * Intended for monitoring purposes.
+     *
+     * @return Collection of LaneExecutor objects, empty by default.
+     */
+    @NonNull
+    public Collection<LaneExecutor> getLanes() {
+        return Collections.emptyList();
+    }
+
     @Override
     public void onEventAsync(@NonNull final BillingRequest billingRequest) {
-        if (!isAvailable()) {
+        if (!isAvailableCached()) {
             postEmptyResponse(billingRequest, BILLING_UNAVAILABLE);
         } else {
             handleRequest(billingRequest);
         }
-        OPFIab.post(new RequestHandledEvent(billingRequest));
+        postRequestHandled(billingRequest);
     }
 
     @Override
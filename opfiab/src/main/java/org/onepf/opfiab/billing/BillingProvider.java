@@ -52,6 +52,7 @@ public interface BillingProvider {
      * Indicates whether this provider is available on the system.
      * <br>
      * Called before each request, thus it might be a good idea to cache intermediate result.
+     * {@link BaseBillingProvider} caches it until one of its packages is changed.
      *
      * @return true is BillingProvider is currently available, false otherwise.
      */
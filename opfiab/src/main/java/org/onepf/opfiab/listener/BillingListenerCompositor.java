@@ -27,49 +27,108 @@ import org.onepf.opfiab.model.event.billing.InventoryResponse;
 import org.onepf.opfiab.model.event.billing.PurchaseResponse;
 import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
 
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Handy implementation of {@link BillingListener} interface which aggregates multiple listener
  * objects.
+ * <br>
+ * Listeners are called in order of registration. They can be added or removed at any time,
+ * including from within a callback, change takes effect starting with the next event.
  */
 public class BillingListenerCompositor implements BillingListener {
 
-    protected final Collection<BillingListener> billingListeners = new HashSet<>();
+    // Indexes of listener arrays, one per callback type
+    private static final int BILLING = 0;
+    private static final int SETUP = 1;
+    private static final int PURCHASE = 2;
+    private static final int INVENTORY = 3;
+    private static final int SKU_DETAILS = 4;
+    private static final int CONSUME = 5;
+    private static final int TYPES = 6;
 
-    protected final Collection<OnSetupListener> setupListeners = new HashSet<>();
-    protected final Collection<OnPurchaseListener> purchaseListeners = new HashSet<>();
-    protected final Collection<OnInventoryListener> inventoryListeners = new HashSet<>();
-    protected final Collection<OnSkuDetailsListener> skuDetailsListeners = new HashSet<>();
-    protected final Collection<OnConsumeListener> consumeListeners = new HashSet<>();
+    private static final Object[] EMPTY = new Object[0];
+
+    private static boolean matches(@NonNull final Object registered,
+                                   @NonNull final Object listener) {
+        return unwrap(registered).equals(unwrap(listener));
+    }
+
+    @NonNull
+    private static Object unwrap(@NonNull final Object listener) {
+        return listener instanceof ThreadedBillingListener
+                ? ((ThreadedBillingListener) listener).getListener()
+                : listener;
+    }
+
+    private static int indexOf(@NonNull final Object[] listeners, @NonNull final Object listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (matches(listeners[i], listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Arrays are never modified, they are replaced with modified copies instead
+    private final AtomicReferenceArray<Object[]> listeners = new AtomicReferenceArray<>(TYPES);
 
     public BillingListenerCompositor() {
         super();
+        for (int i = 0; i < TYPES; i++) {
+            listeners.set(i, EMPTY);
+        }
+    }
+
+    private synchronized void add(final int type, @NonNull final Object listener) {
+        final Object[] current = listeners.get(type);
+        final int index = indexOf(current, listener);
+        final Object[] updated;
+        if (index >= 0) {
+            // Listener is already registered, possibly with another delivery thread
+            updated = current.clone();
+            updated[index] = listener;
+        } else {
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+        }
+        listeners.set(type, updated);
+    }
+
+    private synchronized void remove(final int type, @NonNull final Object listener) {
+        final Object[] current = listeners.get(type);
+        final int index = indexOf(current, listener);
+        if (index >= 0) {
+            final Object[] updated = new Object[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, updated.length - index);
+            listeners.set(type, updated);
+        }
     }
 
     public void addSetupListener(@NonNull final OnSetupListener setupListener) {
-        setupListeners.add(setupListener);
+        add(SETUP, setupListener);
     }
 
     public void addPurchaseListener(@NonNull final OnPurchaseListener purchaseListener) {
-        purchaseListeners.add(purchaseListener);
+        add(PURCHASE, purchaseListener);
     }
 
     public void addInventoryListener(@NonNull final OnInventoryListener inventoryListener) {
-        inventoryListeners.add(inventoryListener);
+        add(INVENTORY, inventoryListener);
     }
 
     public void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener) {
-        skuDetailsListeners.add(skuInfoListener);
+        add(SKU_DETAILS, skuInfoListener);
     }
 
     public void addConsumeListener(@NonNull final OnConsumeListener consumeListener) {
-        consumeListeners.add(consumeListener);
+        add(CONSUME, consumeListener);
     }
 
     public void addBillingListener(@NonNull final BillingListener billingListener) {
-        billingListeners.add(billingListener);
+        add(BILLING, billingListener);
 
         addSetupListener(billingListener);
         addPurchaseListener(billingListener);
@@ -78,59 +137,144 @@ public class BillingListenerCompositor implements BillingListener {
         addConsumeListener(billingListener);
     }
 
+    /**
+     * Register setup listener to receive callbacks on the supplied thread.
+     */
+    public void addSetupListener(@NonNull final OnSetupListener setupListener,
+                                 @NonNull final DeliveryThread deliveryThread) {
+        add(SETUP, new ThreadedBillingListener(setupListener, deliveryThread));
+    }
+
+    /**
+     * Register purchase listener to receive callbacks on the supplied thread.
+     */
+    public void addPurchaseListener(@NonNull final OnPurchaseListener purchaseListener,
+                                    @NonNull final DeliveryThread deliveryThread) {
+        add(PURCHASE, new ThreadedBillingListener(purchaseListener, deliveryThread));
+    }
+
+    /**
+     * Register inventory listener to receive callbacks on the supplied thread.
+     */
+    public void addInventoryListener(@NonNull final OnInventoryListener inventoryListener,
+                                     @NonNull final DeliveryThread deliveryThread) {
+        add(INVENTORY, new ThreadedBillingListener(inventoryListener, deliveryThread));
+    }
+
+    /**
+     * Register sku details listener to receive callbacks on the supplied thread.
+     */
+    public void addSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener,
+                                      @NonNull final DeliveryThread deliveryThread) {
+        add(SKU_DETAILS, new ThreadedBillingListener(skuInfoListener, deliveryThread));
+    }
+
+    /**
+     * Register consume listener to receive callbacks on the supplied thread.
+     */
+    public void addConsumeListener(@NonNull final OnConsumeListener consumeListener,
+                                   @NonNull final DeliveryThread deliveryThread) {
+        add(CONSUME, new ThreadedBillingListener(consumeListener, deliveryThread));
+    }
+
+    /**
+     * Register billing listener to receive all callbacks on the supplied thread.
+     */
+    public void addBillingListener(@NonNull final BillingListener billingListener,
+                                   @NonNull final DeliveryThread deliveryThread) {
+        final BillingListener listener = new ThreadedBillingListener(billingListener,
+                                                                     deliveryThread);
+        add(BILLING, listener);
+
+        addSetupListener(listener);
+        addPurchaseListener(listener);
+        addInventoryListener(listener);
+        addSkuDetailsListener(listener);
+        addConsumeListener(listener);
+    }
+
+    public void removeSetupListener(@NonNull final OnSetupListener setupListener) {
+        remove(SETUP, setupListener);
+    }
+
+    public void removePurchaseListener(@NonNull final OnPurchaseListener purchaseListener) {
+        remove(PURCHASE, purchaseListener);
+    }
+
+    public void removeInventoryListener(@NonNull final OnInventoryListener inventoryListener) {
+        remove(INVENTORY, inventoryListener);
+    }
+
+    public void removeSkuDetailsListener(@NonNull final OnSkuDetailsListener skuInfoListener) {
+        remove(SKU_DETAILS, skuInfoListener);
+    }
+
+    public void removeConsumeListener(@NonNull final OnConsumeListener consumeListener) {
+        remove(CONSUME, consumeListener);
+    }
+
+    /**
+     * Unregister billing listener from all callbacks.
+     */
+    public void removeBillingListener(@NonNull final BillingListener billingListener) {
+        for (int i = 0; i < TYPES; i++) {
+            remove(i, billingListener);
+        }
+    }
+
     @Override
     public void onRequest(@NonNull final BillingRequest billingRequest) {
-        for (final BillingListener billingListener : billingListeners) {
-            billingListener.onRequest(billingRequest);
+        for (final Object listener : listeners.get(BILLING)) {
+            ((BillingListener) listener).onRequest(billingRequest);
         }
     }
 
     @Override
     public void onResponse(@NonNull final BillingResponse billingResponse) {
-        for (final BillingListener billingListener : billingListeners) {
-            billingListener.onResponse(billingResponse);
+        for (final Object listener : listeners.get(BILLING)) {
+            ((BillingListener) listener).onResponse(billingResponse);
         }
     }
 
     @Override
     public void onSetupStarted(@NonNull final SetupStartedEvent setupStartedEvent) {
-        for (final OnSetupListener setupListener : setupListeners) {
-            setupListener.onSetupStarted(setupStartedEvent);
+        for (final Object listener : listeners.get(SETUP)) {
+            ((OnSetupListener) listener).onSetupStarted(setupStartedEvent);
         }
     }
 
     @Override
     public void onSetupResponse(@NonNull final SetupResponse setupResponse) {
-        for (final OnSetupListener setupListener : setupListeners) {
-            setupListener.onSetupResponse(setupResponse);
+        for (final Object listener : listeners.get(SETUP)) {
+            ((OnSetupListener) listener).onSetupResponse(setupResponse);
         }
     }
 
     @Override
     public void onPurchase(@NonNull final PurchaseResponse purchaseResponse) {
-        for (final OnPurchaseListener purchaseListener : purchaseListeners) {
-            purchaseListener.onPurchase(purchaseResponse);
+        for (final Object listener : listeners.get(PURCHASE)) {
+            ((OnPurchaseListener) listener).onPurchase(purchaseResponse);
         }
     }
 
     @Override
     public void onConsume(@NonNull final ConsumeResponse consumeResponse) {
-        for (final OnConsumeListener consumeListener : consumeListeners) {
-            consumeListener.onConsume(consumeResponse);
+        for (final Object listener : listeners.get(CONSUME)) {
+            ((OnConsumeListener) listener).onConsume(consumeResponse);
         }
     }
 
     @Override
     public void onInventory(@NonNull final InventoryResponse inventoryResponse) {
-        for (final OnInventoryListener inventoryListener : inventoryListeners) {
-            inventoryListener.onInventory(inventoryResponse);
+        for (final Object listener : listeners.get(INVENTORY)) {
+            ((OnInventoryListener) listener).onInventory(inventoryResponse);
         }
     }
 
     @Override
     public void onSkuDetails(@NonNull final SkuDetailsResponse skuDetailsResponse) {
-        for (final OnSkuDetailsListener skuDetailsListener : skuDetailsListeners) {
-            skuDetailsListener.onSkuDetails(skuDetailsResponse);
+        for (final Object listener : listeners.get(SKU_DETAILS)) {
+            ((OnSkuDetailsListener) listener).onSkuDetails(skuDetailsResponse);
         }
     }
 }
@@ -28,6 +28,8 @@ import org.onepf.opfiab.model.event.billing.InventoryResponse;
 import org.onepf.opfiab.model.event.billing.PurchaseResponse;
 import org.onepf.opfiab.verification.VerificationResult;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -40,6 +42,8 @@ import java.util.Map;
  * <li>Attempt to consume all consumable, verified purchases.
  * <li>Attempt to fully load user inventory via subsequently calling {@link IabHelper#inventory(boolean)}.
  * </ul>
+ * Consider using {@link DeliveryThread#BACKGROUND} to keep processing of large inventory off the
+ * main thread.
  */
 public class DefaultBillingListener extends SimpleBillingListener {
 
@@ -77,13 +81,18 @@ public class DefaultBillingListener extends SimpleBillingListener {
             final Map<Purchase, VerificationResult> inventory = inventoryResponse.getInventory();
             if (inventory != null) {
                 // Inventory is not empty
+                final Collection<Purchase> consumable = new ArrayList<>();
                 for (final Map.Entry<Purchase, VerificationResult> entry : inventory.entrySet()) {
                     final Purchase purchase = entry.getKey();
                     final VerificationResult verificationResult = entry.getValue();
                     if (verificationResult == VerificationResult.SUCCESS && canConsume(purchase)) {
-                        getHelper().consume(purchase);
+                        consumable.add(purchase);
                     }
                 }
+                if (!consumable.isEmpty()) {
+                    // Consume everything with a single request
+                    getHelper().consume(consumable);
+                }
             }
             // Load next batch if there's more
             if (inventoryResponse.hasMore()) {
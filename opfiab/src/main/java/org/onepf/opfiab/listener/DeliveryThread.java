@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab.listener;
+
+/**
+ * Thread used to deliver callbacks to a listener.
+ * <br>
+ * Callbacks of each listener are always delivered in the same order library received events.
+ */
+public enum DeliveryThread {
+
+    /**
+     * Main thread.
+     * <br>
+     * Default for listeners registered with helpers.
+     */
+    MAIN,
+    /**
+     * Library background thread shared by all listeners.
+     * <br>
+     * Intended for heavy processing of large responses.
+     * Requests can be sent from this thread as well.
+     */
+    BACKGROUND,
+    /**
+     * Thread which dispatches event, without any switching.
+     */
+    POSTING,
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab.listener;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import org.onepf.opfiab.model.event.SetupResponse;
+import org.onepf.opfiab.model.event.SetupStartedEvent;
+import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.ConsumeResponse;
+import org.onepf.opfiab.model.event.billing.InventoryResponse;
+import org.onepf.opfiab.model.event.billing.PurchaseResponse;
+import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
+import org.onepf.opfiab.util.LaneExecutor;
+
+import java.util.concurrent.Executor;
+
+/**
+ * {@link BillingListener} which re-delivers callbacks to wrapped listener on chosen
+ * {@link DeliveryThread}.
+ * <br>
+ * Wrapped listener receives only callbacks declared by interfaces it implements.
+ * <br>
+ * Two wrappers are equal if they wrap equal listeners, regardless of their delivery thread.
+ */
+public final class ThreadedBillingListener implements BillingListener {
+
+    private static final LaneExecutor LISTENER_LANE = new LaneExecutor("OPFIab-listeners");
+
+    private static final Executor MAIN_EXECUTOR = new Executor() {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull final Runnable command) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                command.run();
+            } else {
+                handler.post(command);
+            }
+        }
+    };
+
+    private static final Executor POSTING_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull final Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Get lane used to deliver callbacks to {@link DeliveryThread#BACKGROUND} listeners.
+     *
+     * @return LaneExecutor object.
+     */
+    @NonNull
+    public static LaneExecutor getListenerLane() {
+        return LISTENER_LANE;
+    }
+
+    @NonNull
+    private static Executor getExecutor(@NonNull final DeliveryThread deliveryThread) {
+        switch (deliveryThread) {
+            case MAIN:
+                return MAIN_EXECUTOR;
+            case BACKGROUND:
+                return LISTENER_LANE;
+            case POSTING:
+                return POSTING_EXECUTOR;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    @NonNull
+    private final Object listener;
+    @NonNull
+    private final DeliveryThread deliveryThread;
+    @NonNull
+    private final Executor executor;
+
+    /**
+     * @param listener       any listener from this package, e.g. {@link OnPurchaseListener}.
+     * @param deliveryThread thread used to deliver callbacks.
+     */
+    public ThreadedBillingListener(@NonNull final Object listener,
+                                   @NonNull final DeliveryThread deliveryThread) {
+        this.listener = listener;
+        this.deliveryThread = deliveryThread;
+        this.executor = getExecutor(deliveryThread);
+    }
+
+    /**
+     * Get wrapped listener.
+     *
+     * @return Listener object.
+     */
+    @NonNull
+    public Object getListener() {
+        return listener;
+    }
+
+    /**
+     * Get thread used to deliver callbacks to wrapped listener.
+     *
+     * @return DeliveryThread value.
+     */
+    @NonNull
+    public DeliveryThread getDeliveryThread() {
+        return deliveryThread;
+    }
+
+    @Override
+    public void onRequest(@NonNull final BillingRequest billingRequest) {
+        if (listener instanceof BillingListener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((BillingListener) listener).onRequest(billingRequest);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onResponse(@NonNull final BillingResponse billingResponse) {
+        if (listener instanceof BillingListener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((BillingListener) listener).onResponse(billingResponse);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onSetupStarted(@NonNull final SetupStartedEvent setupStartedEvent) {
+        if (listener instanceof OnSetupListener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((OnSetupListener) listener).onSetupStarted(setupStartedEvent);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onSetupResponse(@NonNull final SetupResponse setupResponse) {
+        if (listener instanceof OnSetupListener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((OnSetupListener) listener).onSetupResponse(setupResponse);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onPurchase(@NonNull final PurchaseResponse purchaseResponse) {
+        if (listener instanceof OnPurchaseListener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((OnPurchaseListener) listener).onPurchase(purchaseResponse);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onConsume(@NonNull final ConsumeResponse consumeResponse) {
+        if (listener instanceof OnConsumeListener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((OnConsumeListener) listener).onConsume(consumeResponse);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onInventory(@NonNull final InventoryResponse inventoryResponse) {
+        if (listener instanceof OnInventoryListener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((OnInventoryListener) listener).onInventory(inventoryResponse);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onSkuDetails(@NonNull final SkuDetailsResponse skuDetailsResponse) {
+        if (listener instanceof OnSkuDetailsListener) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((OnSkuDetailsListener) listener).onSkuDetails(skuDetailsResponse);
+                }
+            });
+        }
+    }
+
+    //CHECKSTYLE:OFF
+    @SuppressWarnings({"PMD", "RedundantIfStatement"})
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final ThreadedBillingListener that = (ThreadedBillingListener) o;
+
+        if (!listener.equals(that.listener)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return listener.hashCode();
+    }
+    //CHECKSTYLE:ON
+
+    @Override
+    public String toString() {
+        return listener + " @ " + deliveryThread;
+    }
+}
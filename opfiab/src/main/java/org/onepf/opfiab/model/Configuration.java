@@ -20,13 +20,25 @@ import android.app.Application;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.onepf.opfiab.OPFIab;
 import org.onepf.opfiab.api.AdvancedIabHelper;
 import org.onepf.opfiab.billing.BillingProvider;
 import org.onepf.opfiab.listener.BillingListener;
 import org.onepf.opfiab.listener.DefaultBillingListener;
+import org.onepf.opfiab.listener.DeliveryThread;
+import org.onepf.opfiab.listener.OnInventoryListener;
+import org.onepf.opfiab.listener.ThreadedBillingListener;
+import org.onepf.opfiab.model.event.SetupResponse;
+import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.InventoryResponse;
+import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
+import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
+import org.onepf.opfiab.model.event.billing.Status;
 
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -38,6 +50,25 @@ import java.util.Set;
 public final class Configuration {
 
     private static final long DEFAULT_REQUEST_DELAY = 50L;
+    private static final long DEFAULT_REQUEST_TIMEOUT = 60000L; // 1 minute
+    private static final long DEFAULT_SETUP_TIMEOUT = 10000L; // 10 seconds
+
+    /**
+     * Defines what to do with new request if helper's request queue is full.
+     *
+     * @see Builder#setMaxQueueSize(int, OverflowPolicy)
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Drop new request.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop oldest request with the lowest priority to make room for the new one.
+         */
+        DROP_OLDEST,
+    }
 
 
     @NonNull
@@ -45,16 +76,46 @@ public final class Configuration {
     @Nullable
     private final BillingListener billingListener;
     private final long subsequentRequestDelay;
+    private final long skuDetailsMergeWindow;
+    private final long deliveryBatchInterval;
+    private final long setupTimeout;
+    private final long warmStartTtl;
+    private final int maxQueueSize;
+    @NonNull
+    private final OverflowPolicy overflowPolicy;
     private final boolean skipUnauthorised;
     private final boolean autoRecover;
+    private final boolean broadcastResponses;
+    private final boolean stickyResponses;
+    @NonNull
+    private final Map<BillingRequest.Type, Long> requestTimeouts;
 
     Configuration(@NonNull final Set<BillingProvider> providers,
                   @Nullable final BillingListener billingListener,
                   final long subsequentRequestDelay,
+                  final long skuDetailsMergeWindow,
+                  final long deliveryBatchInterval,
+                  final long setupTimeout,
+                  final long warmStartTtl,
+                  final int maxQueueSize,
+                  @NonNull final OverflowPolicy overflowPolicy,
                   final boolean skipUnauthorised,
-                  final boolean autoRecover) {
+                  final boolean autoRecover,
+                  final boolean broadcastResponses,
+                  final boolean stickyResponses,
+                  @NonNull final Map<BillingRequest.Type, Long> requestTimeouts) {
         this.subsequentRequestDelay = subsequentRequestDelay;
+        this.skuDetailsMergeWindow = skuDetailsMergeWindow;
+        this.deliveryBatchInterval = deliveryBatchInterval;
+        this.setupTimeout = setupTimeout;
+        this.warmStartTtl = warmStartTtl;
+        this.maxQueueSize = maxQueueSize;
+        this.overflowPolicy = overflowPolicy;
         this.autoRecover = autoRecover;
+        this.broadcastResponses = broadcastResponses;
+        this.stickyResponses = stickyResponses;
+        this.requestTimeouts = Collections.unmodifiableMap(
+                new EnumMap<BillingRequest.Type, Long>(requestTimeouts));
         this.providers = Collections.unmodifiableSet(providers);
         this.billingListener = billingListener;
         this.skipUnauthorised = skipUnauthorised;
@@ -82,7 +143,10 @@ public final class Configuration {
     }
 
     /**
-     * Get minimal time gap between requests with the same type.
+     * Get initial time gap between requests used when {@link BillingProvider} reports it's
+     * overloaded.
+     * <br>
+     * Otherwise enqueued requests are sent without any delay.
      *
      * @return Time gap in milliseconds.
      */
@@ -90,6 +154,67 @@ public final class Configuration {
         return subsequentRequestDelay;
     }
 
+    /**
+     * Get time window during which {@link SkuDetailsRequest}s from all helpers are collected to be
+     * merged into a single request.
+     *
+     * @return Time window in milliseconds. Zero if requests are not merged.
+     */
+    public long getSkuDetailsMergeWindow() {
+        return skuDetailsMergeWindow;
+    }
+
+    /**
+     * Get minimal time between main thread messages used to deliver events posted from background
+     * threads, such as responses from {@link BillingProvider}.
+     *
+     * @return Time in milliseconds. Zero if each event is delivered with its own message.
+     */
+    public long getDeliveryBatchInterval() {
+        return deliveryBatchInterval;
+    }
+
+    /**
+     * Get maximum time setup process is given to check availability of all
+     * {@link BillingProvider}s.
+     *
+     * @return Time in milliseconds. Zero if there's no time limit.
+     */
+    public long getSetupTimeout() {
+        return setupTimeout;
+    }
+
+    /**
+     * Get time during which result of successful setup is trusted without checking
+     * {@link BillingProvider} availability first.
+     *
+     * @return Time in milliseconds. Zero if every setup waits for availability check.
+     */
+    public long getWarmStartTtl() {
+        return warmStartTtl;
+    }
+
+    /**
+     * Get maximum number of requests which can be enqueued by a single helper.
+     *
+     * @return Maximum queue size. Zero if queue is unbounded.
+     * @see AdvancedIabHelper
+     */
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Get policy applied to new requests when helper's queue is full.
+     *
+     * @return OverflowPolicy object.
+     * @see #getMaxQueueSize()
+     */
+    @NonNull
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
     /**
      * Indicates whether unauthorized {@link BillingProvider}s should be skipped during setup
      * process.
@@ -111,6 +236,40 @@ public final class Configuration {
         return autoRecover;
     }
 
+    /**
+     * Indicates whether responses should be delivered to listeners of all helpers, rather than
+     * only to listeners of the helper which sent corresponding request.
+     * <br>
+     * Global {@link #getBillingListener()} receives all responses regardless of this flag.
+     *
+     * @return True if responses are delivered to all helpers. False otherwise.
+     */
+    public boolean broadcastResponses() {
+        return broadcastResponses;
+    }
+
+    /**
+     * Indicates whether last successful inventory and sku details responses should be kept, so
+     * they can be delivered to newly registered listeners.
+     *
+     * @return True if responses are kept. False otherwise.
+     */
+    public boolean stickyResponses() {
+        return stickyResponses;
+    }
+
+    /**
+     * Get maximum time {@link BillingProvider} is given to handle request of the supplied type.
+     *
+     * @param type Type of the request.
+     * @return Time in milliseconds. Zero if there's no time limit.
+     * @see Builder#setRequestTimeout(BillingRequest.Type, long)
+     */
+    public long getRequestTimeout(@NonNull final BillingRequest.Type type) {
+        final Long timeout = requestTimeouts.get(type);
+        return timeout == null ? 0L : timeout;
+    }
+
     /**
      * Builder class for {@link Configuration} object.
      */
@@ -121,8 +280,29 @@ public final class Configuration {
         @Nullable
         private BillingListener billingListener;
         private long subsequentRequestDelay = DEFAULT_REQUEST_DELAY;
+        private long skuDetailsMergeWindow;
+        private long deliveryBatchInterval;
+        private long setupTimeout = DEFAULT_SETUP_TIMEOUT;
+        private long warmStartTtl;
+        private int maxQueueSize;
+        @NonNull
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
         private boolean skipUnauthorised;
         private boolean autoRecover;
+        private boolean broadcastResponses;
+        private boolean stickyResponses;
+        @NonNull
+        private final Map<BillingRequest.Type, Long> requestTimeouts =
+                new EnumMap<>(BillingRequest.Type.class);
+
+        public Builder() {
+            for (final BillingRequest.Type type : BillingRequest.Type.values()) {
+                // Purchase might take unpredictable time, since it requires user interaction
+                if (type != BillingRequest.Type.PURCHASE) {
+                    requestTimeouts.put(type, DEFAULT_REQUEST_TIMEOUT);
+                }
+            }
+        }
 
         /**
          * Add supported billing provider.
@@ -152,7 +332,23 @@ public final class Configuration {
         }
 
         /**
-         * Set time gap between attempts to execute enqueued requests.
+         * Set global listener to handle all billing events on the supplied thread.
+         *
+         * @param billingListener BillingListener object to use.
+         * @param deliveryThread  Thread used to deliver callbacks.
+         * @return this object.
+         * @see #setBillingListener(BillingListener)
+         */
+        public Builder setBillingListener(@NonNull final BillingListener billingListener,
+                                          @NonNull final DeliveryThread deliveryThread) {
+            this.billingListener = new ThreadedBillingListener(billingListener, deliveryThread);
+            return this;
+        }
+
+        /**
+         * Set initial time gap between attempts to execute enqueued requests, applied only when
+         * {@link BillingProvider} responds with {@link Status#SERVICE_UNAVAILABLE} or
+         * {@link Status#BUSY}. Gap is doubled with each subsequent throttled response.
          * <br>
          * Default valued is 50ms.
          *
@@ -165,6 +361,114 @@ public final class Configuration {
             return this;
         }
 
+        /**
+         * Set time window during which {@link SkuDetailsRequest}s sent with
+         * {@link AdvancedIabHelper} are held back to be merged into a single request for all SKUs.
+         * <br>
+         * Default value is 0, meaning requests are not merged.
+         *
+         * @param skuDetailsMergeWindow Time window in milliseconds.
+         * @return this object.
+         * @see #getSkuDetailsMergeWindow()
+         */
+        public Builder setSkuDetailsMergeWindow(final long skuDetailsMergeWindow) {
+            if (skuDetailsMergeWindow < 0L) {
+                throw new IllegalArgumentException();
+            }
+            this.skuDetailsMergeWindow = skuDetailsMergeWindow;
+            return this;
+        }
+
+        /**
+         * Set minimal time between main thread messages used to deliver events posted from
+         * background threads.
+         * <br>
+         * All events which arrived in the meantime, e.g. a burst of consume responses, are then
+         * delivered in order by a single message. Interval of one frame (16ms) is a reasonable
+         * choice.
+         * <br>
+         * Default value is 0, meaning each event is delivered with its own message.
+         *
+         * @param deliveryBatchInterval Time in milliseconds.
+         * @return this object.
+         * @see #getDeliveryBatchInterval()
+         * @see OPFIab#getMainExecutor()
+         */
+        public Builder setDeliveryBatchInterval(final long deliveryBatchInterval) {
+            if (deliveryBatchInterval < 0L) {
+                throw new IllegalArgumentException();
+            }
+            this.deliveryBatchInterval = deliveryBatchInterval;
+            return this;
+        }
+
+        /**
+         * Set maximum time setup process is given to check availability of all
+         * {@link BillingProvider}s.
+         * <br>
+         * Providers are checked concurrently. Providers which failed to respond in time are
+         * considered unavailable.
+         * <br>
+         * Default value is 10 seconds.
+         *
+         * @param setupTimeout Time in milliseconds, zero to remove limit.
+         * @return this object.
+         * @see #getSetupTimeout()
+         */
+        public Builder setSetupTimeout(final long setupTimeout) {
+            if (setupTimeout < 0L) {
+                throw new IllegalArgumentException();
+            }
+            this.setupTimeout = setupTimeout;
+            return this;
+        }
+
+        /**
+         * Set time during which result of successful setup is trusted without checking
+         * {@link BillingProvider} availability first, even across application restarts.
+         * <br>
+         * Within this time, setup immediately responds with provisional {@link SetupResponse}
+         * based on the last picked provider, so requests can be sent right away. Providers are
+         * then checked in background and another SetupResponse is sent only if the result
+         * differs.
+         * <br>
+         * Default value is 0, meaning setup always waits for availability check.
+         *
+         * @param warmStartTtl Time in milliseconds.
+         * @return this object.
+         * @see #getWarmStartTtl()
+         * @see SetupResponse#isProvisional()
+         */
+        public Builder setWarmStartTtl(final long warmStartTtl) {
+            if (warmStartTtl < 0L) {
+                throw new IllegalArgumentException();
+            }
+            this.warmStartTtl = warmStartTtl;
+            return this;
+        }
+
+        /**
+         * Limit number of requests a single helper can enqueue.
+         * <br>
+         * Dropped requests are answered with {@link Status#BUSY}.
+         * <br>
+         * By default queue is unbounded.
+         *
+         * @param maxQueueSize   Maximum number of enqueued requests, zero for unbounded queue.
+         * @param overflowPolicy Policy to apply when queue is full.
+         * @return this object.
+         * @see AdvancedIabHelper
+         */
+        public Builder setMaxQueueSize(final int maxQueueSize,
+                                       @NonNull final OverflowPolicy overflowPolicy) {
+            if (maxQueueSize < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.maxQueueSize = maxQueueSize;
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
         /**
          * Set flag indicating whether unauthorized {@link BillingProvider}s should be skipped
          * during setup.
@@ -191,6 +495,68 @@ public final class Configuration {
             return this;
         }
 
+        /**
+         * Set flag indicating whether every response should be delivered to listeners of all
+         * {@link AdvancedIabHelper}s.
+         * <br>
+         * By default response is only delivered to the helper which sent corresponding request.
+         * Responses which can't be traced back to any request, such as restored purchases, are
+         * always delivered to all helpers.
+         *
+         * @param broadcastResponses True to deliver responses to all helpers.
+         * @return this object.
+         * @see #setBillingListener(BillingListener)
+         */
+        public Builder setBroadcastResponses(final boolean broadcastResponses) {
+            this.broadcastResponses = broadcastResponses;
+            return this;
+        }
+
+        /**
+         * Set flag indicating whether last successful {@link InventoryResponse} and
+         * {@link SkuDetailsResponse} should be kept in memory.
+         * <br>
+         * Kept responses can be delivered to new listeners right away, see
+         * {@link AdvancedIabHelper#addInventoryListener(OnInventoryListener, boolean)}.
+         * Kept inventory is dropped once any purchase or consume succeeds.
+         * <br>
+         * Default value is false.
+         *
+         * @param stickyResponses True to keep last responses.
+         * @return this object.
+         * @see AdvancedIabHelper#getLastResponseAge(BillingRequest.Type)
+         */
+        public Builder setStickyResponses(final boolean stickyResponses) {
+            this.stickyResponses = stickyResponses;
+            return this;
+        }
+
+        /**
+         * Set maximum time {@link BillingProvider} is given to handle request of the supplied
+         * type.
+         * <br>
+         * If request is not handled in time, it's answered with {@link Status#TIMEOUT} and next
+         * request can be sent. Late response from provider is dropped and never delivered.
+         * <br>
+         * Timeout of {@link BillingRequest.Type#CONSUME_BATCH} is multiplied by the number of
+         * purchases in batch.
+         * <br>
+         * Default value is 1 minute for all requests except purchase, which is not limited.
+         *
+         * @param type    Type of the request to limit.
+         * @param timeout Time in milliseconds, zero to remove limit.
+         * @return this object.
+         * @see #getRequestTimeout(BillingRequest.Type)
+         */
+        public Builder setRequestTimeout(@NonNull final BillingRequest.Type type,
+                                         final long timeout) {
+            if (timeout < 0L) {
+                throw new IllegalArgumentException();
+            }
+            requestTimeouts.put(type, timeout);
+            return this;
+        }
+
         /**
          * Construct new configuration object.
          *
@@ -198,7 +564,11 @@ public final class Configuration {
          */
         public Configuration build() {
             return new Configuration(providers, billingListener, subsequentRequestDelay,
-                                     skipUnauthorised, autoRecover);
+                                     skuDetailsMergeWindow, deliveryBatchInterval,
+                                     setupTimeout, warmStartTtl,
+                                     maxQueueSize, overflowPolicy,
+                                     skipUnauthorised, autoRecover, broadcastResponses,
+                                     stickyResponses, requestTimeouts);
         }
     }
 }
@@ -48,6 +48,7 @@ public class SetupResponse implements JsonCompatible {
     private static final String NAME_STATUS = "status";
     private static final String NAME_PROVIDER = "provider";
     private static final String NAME_AUTHORIZED = "authorized";
+    private static final String NAME_PROVISIONAL = "provisional";
 
     /**
      * Status of corresponding {@link SetupResponse}.
@@ -82,20 +83,30 @@ public class SetupResponse implements JsonCompatible {
     @Nullable
     private final BillingProvider billingProvider;
     private final boolean authorized;
+    private final boolean provisional;
 
     public SetupResponse(final @NonNull Configuration configuration,
                          @NonNull final Status status,
                          @Nullable final BillingProvider billingProvider,
-                         final boolean authorized) {
+                         final boolean authorized,
+                         final boolean provisional) {
         this.configuration = configuration;
         this.status = status;
         this.billingProvider = billingProvider;
         this.authorized = authorized;
+        this.provisional = provisional;
         if (billingProvider == null && isSuccessful()) {
             throw new IllegalArgumentException();
         }
     }
 
+    public SetupResponse(final @NonNull Configuration configuration,
+                         @NonNull final Status status,
+                         @Nullable final BillingProvider billingProvider,
+                         final boolean authorized) {
+        this(configuration, status, billingProvider, authorized, false);
+    }
+
     public SetupResponse(final Configuration configuration,
                          @NonNull final Status status,
                          @Nullable final BillingProvider billingProvider) {
@@ -146,6 +157,19 @@ public class SetupResponse implements JsonCompatible {
         return authorized;
     }
 
+    /**
+     * Indicates whether this response was restored from the result of previous setup, before
+     * availability of billing provider was actually checked.
+     * <br>
+     * If check gives a different result, another SetupResponse will follow.
+     *
+     * @return True if this response is provisional, false otherwise.
+     * @see Configuration#getWarmStartTtl()
+     */
+    public boolean isProvisional() {
+        return provisional;
+    }
+
     /**
      * Indicates whether billing provider was successfully picked or not.
      *
@@ -165,6 +189,7 @@ public class SetupResponse implements JsonCompatible {
                     ? NULL
                     : billingProvider.getInfo().toJson());
             jsonObject.put(NAME_AUTHORIZED, authorized);
+            jsonObject.put(NAME_PROVISIONAL, provisional);
         } catch (JSONException exception) {
             OPFLog.e("", exception);
         }
@@ -39,6 +39,10 @@ abstract class BillingEvent implements JsonCompatible, Serializable {
     public enum Type {
 
         CONSUME,
+        /**
+         * Used only by {@link ConsumeBatchRequest}, answered with {@link #CONSUME} responses.
+         */
+        CONSUME_BATCH,
         PURCHASE,
         SKU_DETAILS,
         INVENTORY,
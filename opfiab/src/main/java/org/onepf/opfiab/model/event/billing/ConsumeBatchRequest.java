@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab.model.event.billing;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.onepf.opfiab.billing.BillingProvider;
+import org.onepf.opfiab.model.billing.Purchase;
+import org.onepf.opfutils.OPFLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Request for {@link BillingProvider} to consume several {@link Purchase}s at once.
+ * <br>
+ * Each purchase is answered with its own {@link ConsumeResponse}.
+ *
+ * @see ConsumeRequest
+ */
+public class ConsumeBatchRequest extends BillingRequest {
+
+    private static final String NAME_PURCHASES = "purchases";
+
+
+    // Must use serializable List
+    @SuppressWarnings("PMD.LooseCoupling")
+    @NonNull
+    private final ArrayList<Purchase> purchases;
+
+    public ConsumeBatchRequest(@NonNull final Collection<Purchase> purchases) {
+        super(Type.CONSUME_BATCH);
+        if (purchases.isEmpty()) {
+            throw new IllegalArgumentException("Purchase list is empty.");
+        }
+        this.purchases = new ArrayList<>(purchases);
+    }
+
+    /**
+     * Get Purchases intended for consumption.
+     *
+     * @return Purchase objects.
+     */
+    @NonNull
+    public List<Purchase> getPurchases() {
+        return Collections.unmodifiableList(purchases);
+    }
+
+    @NonNull
+    @Override
+    public JSONObject toJson() {
+        final JSONObject jsonObject = super.toJson();
+        try {
+            final JSONArray jsonArray = new JSONArray();
+            for (final Purchase purchase : purchases) {
+                jsonArray.put(purchase.toJson());
+            }
+            jsonObject.put(NAME_PURCHASES, jsonArray);
+        } catch (JSONException exception) {
+            OPFLog.e("", exception);
+        }
+        return jsonObject;
+    }
+
+    //CHECKSTYLE:OFF
+    @SuppressWarnings({"PMD", "RedundantIfStatement"})
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        if (!super.equals(o)) return false;
+
+        final ConsumeBatchRequest that = (ConsumeBatchRequest) o;
+
+        if (!purchases.equals(that.purchases)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + purchases.hashCode();
+        return result;
+    }
+    //CHECKSTYLE:ON
+}
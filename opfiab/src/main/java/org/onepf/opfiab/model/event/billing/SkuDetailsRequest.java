@@ -41,6 +41,8 @@ public class SkuDetailsRequest extends BillingRequest {
     @SuppressWarnings("PMD.LooseCoupling")
     @NonNull
     private final HashSet<String> skus;
+    // Lazily cached, skus hash is expensive to compute for large sets
+    private transient int hashCode;
 
     public SkuDetailsRequest(@NonNull final Set<String> skus) {
         super(Type.SKU_DETAILS);
@@ -82,6 +84,7 @@ public class SkuDetailsRequest extends BillingRequest {
 
         final SkuDetailsRequest that = (SkuDetailsRequest) o;
 
+        if (hashCode() != that.hashCode()) return false;
         if (!skus.equals(that.skus)) return false;
 
         return true;
@@ -89,9 +92,12 @@ public class SkuDetailsRequest extends BillingRequest {
 
     @Override
     public int hashCode() {
-        int result = super.hashCode();
-        result = 31 * result + skus.hashCode();
-        return result;
+        if (hashCode == 0) {
+            int result = super.hashCode();
+            result = 31 * result + skus.hashCode();
+            hashCode = result;
+        }
+        return hashCode;
     }
     //CHECKSTYLE:ON
 }
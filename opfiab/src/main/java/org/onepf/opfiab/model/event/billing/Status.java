@@ -62,6 +62,10 @@ public enum Status {
      * If it's consumable - purchase must be consumed first.
      */
     ITEM_ALREADY_OWNED,
+    /**
+     * Billing provider failed to respond in time.
+     */
+    TIMEOUT,
     /**
      * For some reason billing provider refused to handle request.
      */
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor running tasks on the main thread.
+ * <br>
+ * If batch interval is set, tasks are not posted one by one. Instead all pending tasks are run in
+ * order by a single main thread message, sent no more than once per interval.
+ * <br>
+ * Keeps track of batch sizes, so efficiency of batching can be measured.
+ * <br>
+ * Intended for internal use.
+ */
+public final class BatchExecutor implements Executor {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong taskCount = new AtomicLong();
+    private final AtomicInteger peakBatchSize = new AtomicInteger();
+    private volatile long interval;
+    private volatile long lastRunTime;
+
+    private final Runnable batch = new Runnable() {
+        @Override
+        public void run() {
+            // Tasks added from now on will be picked either by this batch or by the next one
+            scheduled.set(false);
+            lastRunTime = SystemClock.elapsedRealtime();
+            int size = 0;
+            Runnable task;
+            while ((task = queue.poll()) != null) {
+                size++;
+                task.run();
+            }
+            if (size > 0) {
+                onBatch(size);
+            }
+        }
+    };
+
+    private void onBatch(final int size) {
+        batchCount.incrementAndGet();
+        taskCount.addAndGet(size);
+        int peak = peakBatchSize.get();
+        while (size > peak && !peakBatchSize.compareAndSet(peak, size)) {
+            peak = peakBatchSize.get();
+        }
+    }
+
+    @Override
+    public void execute(@NonNull final Runnable command) {
+        final long batchInterval = interval;
+        if (batchInterval <= 0L) {
+            handler.post(command);
+            onBatch(1);
+            return;
+        }
+        queue.add(command);
+        if (scheduled.compareAndSet(false, true)) {
+            final long elapsed = SystemClock.elapsedRealtime() - lastRunTime;
+            handler.postDelayed(batch, Math.max(0L, batchInterval - elapsed));
+        }
+    }
+
+    /**
+     * Set minimal time between two batches.
+     *
+     * @param interval Time in milliseconds, zero to post each task separately.
+     */
+    public void setInterval(final long interval) {
+        this.interval = interval;
+        if (interval <= 0L && scheduled.get()) {
+            // Run whatever is left without waiting
+            handler.removeCallbacks(batch);
+            handler.post(batch);
+        }
+    }
+
+    /**
+     * Get minimal time between two batches.
+     *
+     * @return Time in milliseconds, zero if batching is disabled.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Get number of main thread messages used to run tasks.
+     *
+     * @return Number of batches.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Get number of tasks passed to the main thread.
+     *
+     * @return Number of tasks.
+     */
+    public long getTaskCount() {
+        return taskCount.get();
+    }
+
+    /**
+     * Get maximum number of tasks executed by a single batch.
+     *
+     * @return Peak batch size.
+     */
+    public int getPeakBatchSize() {
+        return peakBatchSize.get();
+    }
+
+    /**
+     * Get average number of tasks executed by a single batch.
+     *
+     * @return Average batch size, zero if nothing was executed yet.
+     */
+    public float getAverageBatchSize() {
+        final long batches = getBatchCount();
+        return batches == 0L ? 0f : (float) getTaskCount() / batches;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("main: interval %dms, batches %d, tasks %d, peak %d", getInterval(),
+                             getBatchCount(), getTaskCount(), getPeakBatchSize());
+    }
+}
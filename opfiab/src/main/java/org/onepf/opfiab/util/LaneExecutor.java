@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.onepf.opfiab.util;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import org.onepf.opfutils.OPFLog;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor running all tasks one by one on its own background thread.
+ * <br>
+ * Keeps track of its queue, so slow lanes can be spotted.
+ * <br>
+ * Intended for internal use.
+ */
+public final class LaneExecutor implements Executor {
+
+    @NonNull
+    private final String name;
+    @NonNull
+    private final ExecutorService executor;
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicInteger peakQueueSize = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    public LaneExecutor(@NonNull final String name) {
+        this.name = name;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(runnable, name);
+            }
+        });
+    }
+
+    @Override
+    public void execute(@NonNull final Runnable command) {
+        final long enqueueTime = SystemClock.elapsedRealtime();
+        final int size = queueSize.incrementAndGet();
+        int peak = peakQueueSize.get();
+        while (size > peak && !peakQueueSize.compareAndSet(peak, size)) {
+            peak = peakQueueSize.get();
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queueSize.decrementAndGet();
+                    totalWaitTime.addAndGet(SystemClock.elapsedRealtime() - enqueueTime);
+                    try {
+                        command.run();
+                    } finally {
+                        completedCount.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            // Task raced with shutdown
+            queueSize.decrementAndGet();
+            OPFLog.d("Lane is shut down, dropping task: %s", name);
+        }
+    }
+
+    /**
+     * Stop accepting new tasks. Already enqueued tasks will still be executed, tasks supplied
+     * afterwards are dropped.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Get name of this lane, also used as thread name.
+     *
+     * @return Name of this lane.
+     */
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get number of tasks waiting to be executed.
+     *
+     * @return Current queue size.
+     */
+    public int getQueueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * Get maximum number of tasks which were waiting to be executed at the same time.
+     *
+     * @return Peak queue size.
+     */
+    public int getPeakQueueSize() {
+        return peakQueueSize.get();
+    }
+
+    /**
+     * Get number of executed tasks.
+     *
+     * @return Number of tasks.
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Get total time executed tasks spent waiting in queue.
+     *
+     * @return Time in milliseconds.
+     */
+    public long getTotalWaitTime() {
+        return totalWaitTime.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: queue %d, peak %d, completed %d, waited %dms", name,
+                             getQueueSize(), getPeakQueueSize(), getCompletedCount(),
+                             getTotalWaitTime());
+    }
+}
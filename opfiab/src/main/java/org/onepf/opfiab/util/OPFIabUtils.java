@@ -30,20 +30,25 @@ import org.onepf.opfiab.model.billing.Purchase;
 import org.onepf.opfiab.model.billing.SkuDetails;
 import org.onepf.opfiab.model.event.billing.BillingRequest;
 import org.onepf.opfiab.model.event.billing.BillingResponse;
+import org.onepf.opfiab.model.event.billing.ConsumeBatchRequest;
 import org.onepf.opfiab.model.event.billing.ConsumeRequest;
 import org.onepf.opfiab.model.event.billing.ConsumeResponse;
 import org.onepf.opfiab.model.event.billing.InventoryResponse;
 import org.onepf.opfiab.model.event.billing.PurchaseRequest;
 import org.onepf.opfiab.model.event.billing.PurchaseResponse;
+import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
 import org.onepf.opfiab.model.event.billing.SkuDetailsResponse;
 import org.onepf.opfiab.model.event.billing.Status;
 import org.onepf.opfiab.sku.SkuResolver;
 import org.onepf.opfutils.OPFLog;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -111,6 +116,105 @@ public final class OPFIabUtils {
         return null;
     }
 
+    /**
+     * Indicates whether supplied request only reads data from {@link BillingProvider}, thus can
+     * be safely handled alongside other requests.
+     *
+     * @param billingRequest BillingRequest object to check.
+     * @return True if request doesn't change user inventory, false otherwise.
+     */
+    public static boolean isReadOnly(@NonNull final BillingRequest billingRequest) {
+        switch (billingRequest.getType()) {
+            case SKU_DETAILS:
+            case INVENTORY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Strip details of SKUs which weren't asked for by supplied requests from merged response.
+     *
+     * @param billingResponse BillingResponse object which might answer several requests.
+     * @param requests        Requests answered by the response.
+     * @return Response limited to the supplied requests, same object if nothing was stripped.
+     */
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    @NonNull
+    public static BillingResponse filter(@NonNull final BillingResponse billingResponse,
+                                         @NonNull final Collection<BillingRequest> requests) {
+        if (billingResponse.getType() != BillingRequest.Type.SKU_DETAILS) {
+            return billingResponse;
+        }
+        final Collection<SkuDetails> skusDetails =
+                ((SkuDetailsResponse) billingResponse).getSkusDetails();
+        if (skusDetails == null) {
+            return billingResponse;
+        }
+        final Set<String> skus = new HashSet<>();
+        for (final BillingRequest request : requests) {
+            skus.addAll(((SkuDetailsRequest) request).getSkus());
+        }
+        final Collection<SkuDetails> filtered = new ArrayList<>(skus.size());
+        for (final SkuDetails skuDetails : skusDetails) {
+            if (skus.contains(skuDetails.getSku())) {
+                filtered.add(skuDetails);
+            }
+        }
+        if (filtered.size() == skusDetails.size()) {
+            return billingResponse;
+        }
+        return new SkuDetailsResponse(billingResponse.getStatus(),
+                                      billingResponse.getProviderInfo(), filtered);
+    }
+
+    /**
+     * Indicates whether response for running request will also satisfy another request.
+     *
+     * @param runningRequest BillingRequest object which is currently being handled.
+     * @param billingRequest BillingRequest object to check.
+     * @return True if billingRequest can share response with runningRequest, false otherwise.
+     */
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    public static boolean covers(@NonNull final BillingRequest runningRequest,
+                                 @NonNull final BillingRequest billingRequest) {
+        if (!isReadOnly(billingRequest) || runningRequest.getType() != billingRequest.getType()) {
+            return false;
+        }
+        if (runningRequest.equals(billingRequest)) {
+            return true;
+        }
+        if (billingRequest.getType() == BillingRequest.Type.SKU_DETAILS) {
+            final Set<String> runningSkus = ((SkuDetailsRequest) runningRequest).getSkus();
+            final Set<String> skus = ((SkuDetailsRequest) billingRequest).getSkus();
+            return runningSkus.containsAll(skus);
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #emptyResponse(BillingProviderInfo, BillingRequest, Status)}, but also
+     * supports requests which must be answered with several responses.
+     */
+    @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
+    @NonNull
+    public static Collection<BillingResponse> emptyResponses(
+            @Nullable final BillingProviderInfo providerInfo,
+            @NonNull final BillingRequest billingRequest,
+            @NonNull final Status status) {
+        if (billingRequest.getType() != BillingRequest.Type.CONSUME_BATCH) {
+            return Collections.singletonList(emptyResponse(providerInfo, billingRequest, status));
+        }
+        final ConsumeBatchRequest batchRequest = (ConsumeBatchRequest) billingRequest;
+        final List<Purchase> purchases = batchRequest.getPurchases();
+        final Collection<BillingResponse> responses = new ArrayList<>(purchases.size());
+        for (final Purchase purchase : purchases) {
+            responses.add(new ConsumeResponse(status, providerInfo, purchase));
+        }
+        return responses;
+    }
+
     @SuppressFBWarnings({"BC_UNCONFIRMED_CAST"})
     @NonNull
     public static BillingResponse emptyResponse(@Nullable final BillingProviderInfo providerInfo,
@@ -216,6 +320,14 @@ public final class OPFIabUtils {
         return null;
     }
 
+    @Nullable
+    public static <E> E peek(@NonNull final Collection<E> collection) {
+        if (collection.isEmpty()) {
+            return null;
+        }
+        return collection.iterator().next();
+    }
+
     @Nullable
     public static <E> E poll(@NonNull final Collection<E> collection) {
         if (collection.isEmpty()) {
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onepf.opfiab.model.Configuration;
+import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures enqueue, dedupe and removal of large amount of catalog requests in
+ * {@link BillingRequestScheduler}.
+ * <br>
+ * Setup is never finished, so requests stay in queue until they are canceled or dropped.
+ */
+public class BillingRequestIndexBenchmark {
+
+    private static final int SKUS_PER_REQUEST = 50;
+    private static final int WARM_UP_REQUESTS = 1000;
+    private static final int SMALL_RUN = 1000;
+    private static final int LARGE_RUN = 20000;
+    // Per request cost of large run compared to small one, linear index keeps it close to 1
+    private static final double MAX_SLOWDOWN = 5.0;
+
+    private final BillingRequestScheduler scheduler = BillingRequestScheduler.getInstance();
+
+    @Before
+    public void setUp() {
+        BillingBase.getInstance().setConfiguration(new Configuration.Builder().build());
+        scheduler.dropQueue();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.dropQueue();
+        BillingBase.getInstance().setConfiguration(new Configuration.Builder().build());
+    }
+
+    private static List<BillingRequest> newRequests(final int count) {
+        final List<BillingRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Set<String> skus = new HashSet<>();
+            for (int j = 0; j < SKUS_PER_REQUEST; j++) {
+                skus.add("sku" + i + "." + j);
+            }
+            requests.add(new SkuDetailsRequest(skus));
+        }
+        return requests;
+    }
+
+    private RequestHandleImpl<?> schedule(final IabHelperImpl helper,
+                                          final BillingRequest request) {
+        final RequestHandleImpl<?> handle = new RequestHandleImpl<>(helper, request);
+        BillingBase.getInstance().addHandle(handle);
+        scheduler.schedule(helper, request);
+        return handle;
+    }
+
+    /**
+     * Every request is sent by its own helper and shared with the next one, then every other
+     * request is canceled and all helpers are dropped one by one.
+     *
+     * @return Time spent by scheduler in nanoseconds.
+     */
+    private long run(final int count) {
+        final List<BillingRequest> requests = newRequests(count);
+        // Equal, but not the same requests, their hash codes are not computed yet
+        final List<BillingRequest> duplicates = newRequests(count);
+        final List<IabHelperImpl> helpers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            helpers.add(new IabHelperImpl());
+        }
+        final List<RequestHandleImpl<?>> handles = new ArrayList<>(count);
+        final List<RequestHandleImpl<?>> duplicateHandles = new ArrayList<>(count);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            handles.add(schedule(helpers.get(i), requests.get(i)));
+        }
+        for (int i = 0; i < count; i++) {
+            // Dedupe of request sent by another helper
+            final IabHelperImpl helper = helpers.get((i + 1) % count);
+            duplicateHandles.add(schedule(helper, duplicates.get(i)));
+        }
+        for (int i = 0; i < count; i += 2) {
+            handles.get(i).cancel();
+        }
+        for (final IabHelperImpl helper : helpers) {
+            scheduler.dropQueue(helper);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < count; i++) {
+            assertTrue(handles.get(i).isCanceled());
+            assertTrue(duplicateHandles.get(i).isCanceled());
+        }
+        return elapsed;
+    }
+
+    @Test
+    public void hashCodeIsCached() {
+        final BillingRequest request = newRequests(1).get(0);
+        final BillingRequest duplicate = newRequests(1).get(0);
+        assertNotSame(request, duplicate);
+        assertEquals(request, duplicate);
+        assertEquals(request.hashCode(), duplicate.hashCode());
+        assertEquals(request.hashCode(), request.hashCode());
+        assertFalse(request.equals(newRequests(2).get(1)));
+    }
+
+    @Test
+    public void dropQueueKeepsSharedRequests() {
+        final BillingRequest request = newRequests(1).get(0);
+        final IabHelperImpl first = new IabHelperImpl();
+        final IabHelperImpl second = new IabHelperImpl();
+        final RequestHandleImpl<?> firstHandle = schedule(first, request);
+        final RequestHandleImpl<?> secondHandle = schedule(second, newRequests(1).get(0));
+
+        scheduler.dropQueue(first);
+        assertTrue(firstHandle.isCanceled());
+        assertFalse(secondHandle.isCanceled());
+
+        scheduler.dropQueue(second);
+        assertTrue(secondHandle.isCanceled());
+    }
+
+    @Test
+    public void queuedRequestsScaleLinearly() {
+        run(WARM_UP_REQUESTS);
+        final double small = run(SMALL_RUN) / (double) SMALL_RUN;
+        final double large = run(LARGE_RUN) / (double) LARGE_RUN;
+        assertTrue(large < small * MAX_SLOWDOWN);
+    }
+}
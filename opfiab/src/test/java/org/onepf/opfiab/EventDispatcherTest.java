@@ -0,0 +1,279 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab;
+
+import org.junit.Test;
+import org.onepf.opfiab.api.EventHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.MAIN;
+import static org.onepf.opfiab.api.EventHandler.ThreadMode.PROVIDER;
+
+/**
+ * Checks delivery order and threading of {@link EventDispatcher}.
+ * <br>
+ * Android stubs make every thread look like the main one, so main thread handlers are invoked
+ * right from {@link EventDispatcher#post(Object)} on the posting thread.
+ */
+public class EventDispatcherTest {
+
+    private static final int SUBSCRIBERS = 10;
+    private static final int CHURN = 10000;
+    private static final int POSTS = 1000;
+    private static final long AWAIT_TIMEOUT = 10L; // seconds
+
+    private final EventDispatcher dispatcher = new EventDispatcher();
+
+    private static final class Counter {
+
+        private int count;
+    }
+
+    private static final class Provider {
+    }
+
+    private static Collection<EventHandler<?>> newHandlers(final List<String> log,
+                                                           final String name) {
+        return Arrays.<EventHandler<?>>asList(
+                new EventHandler<String>(String.class, MAIN) {
+                    @Override
+                    public void onEvent(final String event) {
+                        log.add(name + ":" + event);
+                    }
+                },
+                new EventHandler<Integer>(Integer.class, MAIN) {
+                    @Override
+                    public void onEvent(final Integer event) {
+                        log.add(name + ":" + event);
+                    }
+                });
+    }
+
+    private static Collection<EventHandler<?>> newCounters(final Counter counter) {
+        return Arrays.<EventHandler<?>>asList(
+                new EventHandler<Number>(Number.class, MAIN) {
+                    @Override
+                    public void onEvent(final Number event) {
+                        counter.count++;
+                    }
+                },
+                new EventHandler<String>(String.class, MAIN) {
+                    @Override
+                    public void onEvent(final String event) {
+                        counter.count++;
+                    }
+                });
+    }
+
+    @Test
+    public void priorityOrder() {
+        final List<String> log = new ArrayList<>();
+        final Object low = new Object();
+        final Object high = new Object();
+        dispatcher.register(low, newHandlers(log, "low"), 0);
+        dispatcher.register(high, newHandlers(log, "high"), 1);
+
+        assertTrue(dispatcher.post("event"));
+        assertEquals(Arrays.asList("high:event", "low:event"), log);
+    }
+
+    @Test
+    public void nestedPostIsQueued() {
+        final List<String> log = new ArrayList<>();
+        final Object poster = new Object();
+        dispatcher.register(poster, Collections.<EventHandler<?>>singletonList(
+                new EventHandler<String>(String.class, MAIN) {
+                    @Override
+                    public void onEvent(final String event) {
+                        log.add("poster:" + event);
+                        dispatcher.post(1);
+                    }
+                }), 1);
+        dispatcher.register(new Object(), newHandlers(log, "listener"), 0);
+
+        dispatcher.post("event");
+        // Listener gets posted event before the one its handler posted
+        assertEquals(Arrays.asList("poster:event", "listener:event", "listener:1"), log);
+    }
+
+    @Test
+    public void unregister() {
+        final List<String> log = new ArrayList<>();
+        final Object subscriber = new Object();
+        dispatcher.register(subscriber, newHandlers(log, "subscriber"), 0);
+        assertTrue(dispatcher.isRegistered(subscriber));
+        dispatcher.unregister(subscriber);
+
+        assertFalse(dispatcher.isRegistered(subscriber));
+        assertFalse(dispatcher.post("event"));
+        assertTrue(log.isEmpty());
+    }
+
+    @Test
+    public void registerChurn() {
+        final Counter counter = new Counter();
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            dispatcher.register(new Object(), newCounters(counter), i);
+        }
+        // Index event classes, so each change has to update them
+        dispatcher.post("event");
+        dispatcher.post(1);
+        dispatcher.post(1L);
+
+        for (int i = 0; i < CHURN; i++) {
+            // Helper of each resumed and paused activity
+            final Object subscriber = new Object();
+            dispatcher.register(subscriber, newCounters(counter), 0);
+            dispatcher.unregister(subscriber);
+        }
+
+        counter.count = 0;
+        dispatcher.post(1);
+        assertEquals(SUBSCRIBERS, counter.count);
+    }
+
+    @Test
+    public void postReachesEverySubscriber() {
+        final Counter counter = new Counter();
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            dispatcher.register(new Object(), newCounters(counter), i);
+        }
+
+        for (int i = 0; i < POSTS; i++) {
+            dispatcher.post(i);
+        }
+        assertEquals(POSTS * SUBSCRIBERS, counter.count);
+    }
+
+    @Test
+    public void postingQueueIsPerThread() throws InterruptedException {
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicBoolean delivered = new AtomicBoolean();
+        dispatcher.register(new Object(), Arrays.<EventHandler<?>>asList(
+                new EventHandler<String>(String.class, MAIN) {
+                    @Override
+                    public void onEvent(final String event) {
+                        log.add(event);
+                        final Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                dispatcher.post(1);
+                            }
+                        });
+                        thread.start();
+                        try {
+                            thread.join(TimeUnit.SECONDS.toMillis(AWAIT_TIMEOUT));
+                        } catch (InterruptedException exception) {
+                            Thread.currentThread().interrupt();
+                        }
+                        // Event from another thread isn't queued behind this one
+                        delivered.set(log.contains("1"));
+                    }
+                },
+                new EventHandler<Integer>(Integer.class, MAIN) {
+                    @Override
+                    public void onEvent(final Integer event) {
+                        log.add(String.valueOf(event));
+                    }
+                }), 0);
+
+        dispatcher.post("event");
+        assertTrue(delivered.get());
+        assertEquals(Arrays.asList("event", "1"), log);
+    }
+
+    @Test
+    public void providerHandlersRunInOrderOnOwnLane() throws InterruptedException {
+        final List<Integer> events = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(POSTS);
+        dispatcher.register(new Provider(), Collections.<EventHandler<?>>singletonList(
+                new EventHandler<Integer>(Integer.class, PROVIDER) {
+                    @Override
+                    public void onEvent(final Integer event) {
+                        events.add(event);
+                        threads.add(Thread.currentThread().getName());
+                        done.countDown();
+                    }
+                }), 0);
+
+        for (int i = 0; i < POSTS; i++) {
+            dispatcher.post(i);
+        }
+        assertTrue(done.await(AWAIT_TIMEOUT, TimeUnit.SECONDS));
+        for (int i = 0; i < POSTS; i++) {
+            assertEquals(i, (int) events.get(i));
+            assertEquals("OPFIab-Provider", threads.get(i));
+        }
+        assertNotEquals(Thread.currentThread().getName(), threads.get(0));
+    }
+
+    @Test
+    public void reRegisteredProviderKeepsLane() throws InterruptedException {
+        final Provider provider = new Provider();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        dispatcher.register(provider, Collections.<EventHandler<?>>singletonList(
+                new EventHandler<String>(String.class, PROVIDER) {
+                    @Override
+                    public void onEvent(final String event) {
+                        running.set(true);
+                        started.countDown();
+                        try {
+                            release.await(AWAIT_TIMEOUT, TimeUnit.SECONDS);
+                        } catch (InterruptedException exception) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.set(false);
+                    }
+                }), 0);
+        dispatcher.post("event");
+        assertTrue(started.await(AWAIT_TIMEOUT, TimeUnit.SECONDS));
+
+        // Provider is re-registered while it's still handling previous event
+        dispatcher.unregister(provider);
+        dispatcher.register(provider, Collections.<EventHandler<?>>singletonList(
+                new EventHandler<Integer>(Integer.class, PROVIDER) {
+                    @Override
+                    public void onEvent(final Integer event) {
+                        overlapped.set(running.get());
+                        done.countDown();
+                    }
+                }), 0);
+        assertTrue(dispatcher.post(1));
+        release.countDown();
+
+        assertTrue(done.await(AWAIT_TIMEOUT, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        assertEquals(2, dispatcher.getLanes().size());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab;
+
+import android.content.Intent;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onepf.opfiab.billing.BillingProvider;
+import org.onepf.opfiab.model.BillingProviderInfo;
+import org.onepf.opfiab.model.Configuration;
+import org.onepf.opfiab.model.event.RequestHandledEvent;
+import org.onepf.opfiab.model.event.SetupResponse;
+import org.onepf.opfiab.model.event.billing.BillingRequest;
+import org.onepf.opfiab.model.event.billing.PurchaseRequest;
+import org.onepf.opfiab.model.event.billing.SkuDetailsRequest;
+import org.onepf.opfiab.model.event.billing.Status;
+import org.onepf.opfiab.util.OPFIabUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains queue of {@link BillingRequestScheduler} through {@link BillingBase} and a billing
+ * provider answering on its own lane.
+ * <br>
+ * Android stubs never run delayed messages, so queue is drained only if each request is sent
+ * right after previous one is handled, without waiting for a timer.
+ */
+public class RequestThroughputBenchmark {
+
+    private static final int REQUESTS = 10000;
+    // Every 5th request is a purchase, it must overtake all sku details requests
+    private static final int PURCHASE_RATIO = 5;
+    private static final long AWAIT_TIMEOUT = 60L; // seconds
+
+    /**
+     * Provider answering every request right away, in order its requests are answered by
+     * library providers: response first, then {@link RequestHandledEvent}.
+     */
+    private static final class TestProvider implements BillingProvider {
+
+        private static final BillingProviderInfo INFO =
+                new BillingProviderInfo("Test", "org.onepf.opfiab.test", null);
+
+        private final List<BillingRequest> handled = Collections.synchronizedList(
+                new ArrayList<BillingRequest>(REQUESTS));
+        private final CountDownLatch drained;
+        @NonNull
+        private final Status status;
+
+        TestProvider(final int expected, @NonNull final Status status) {
+            this.drained = new CountDownLatch(expected);
+            this.status = status;
+        }
+
+        @NonNull
+        @Override
+        public BillingProviderInfo getInfo() {
+            return INFO;
+        }
+
+        @Override
+        public void checkManifest() {
+            // nothing to check
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public boolean isAuthorised() {
+            return true;
+        }
+
+        @Override
+        public void onEventAsync(@NonNull final BillingRequest billingRequest) {
+            handled.add(billingRequest);
+            OPFIab.post(OPFIabUtils.emptyResponse(INFO, billingRequest, status));
+            OPFIab.post(new RequestHandledEvent(billingRequest));
+            drained.countDown();
+        }
+
+        @Override
+        public Intent getStorePageIntent() {
+            return null;
+        }
+
+        @Override
+        public Intent getRateIntent() {
+            return null;
+        }
+    }
+
+    private final BillingBase billingBase = BillingBase.getInstance();
+    private final BillingRequestScheduler scheduler = BillingRequestScheduler.getInstance();
+    private final Configuration configuration = new Configuration.Builder().build();
+    private final IabHelperImpl helper = new IabHelperImpl();
+
+    @Before
+    public void setUp() {
+        billingBase.setConfiguration(configuration);
+        scheduler.dropQueue();
+        OPFIab.register(billingBase, Integer.MAX_VALUE);
+        OPFIab.register(scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        OPFIab.unregister(scheduler);
+        OPFIab.unregister(billingBase);
+        scheduler.dropQueue();
+        billingBase.setConfiguration(configuration);
+    }
+
+    private void schedule(final List<BillingRequest> purchases,
+                          final List<BillingRequest> skuDetails) {
+        for (int i = 0; i < REQUESTS; i++) {
+            final String sku = "sku" + i;
+            final BillingRequest request;
+            if (i % PURCHASE_RATIO == 0) {
+                purchases.add(request = new PurchaseRequest(sku));
+            } else {
+                skuDetails.add(request = new SkuDetailsRequest(Collections.singleton(sku)));
+            }
+            scheduler.schedule(helper, request);
+        }
+    }
+
+    private void setup(@NonNull final BillingProvider provider) {
+        OPFIab.post(new SetupResponse(configuration, SetupResponse.Status.SUCCESS, provider));
+    }
+
+    @Test
+    public void drainQueue() throws InterruptedException {
+        final List<BillingRequest> purchases = new ArrayList<>();
+        final List<BillingRequest> skuDetails = new ArrayList<>();
+        schedule(purchases, skuDetails);
+        final TestProvider provider = new TestProvider(REQUESTS, Status.SUCCESS);
+
+        setup(provider);
+        assertTrue(provider.drained.await(AWAIT_TIMEOUT, TimeUnit.SECONDS));
+
+        assertEquals(REQUESTS, provider.handled.size());
+        for (int i = 0; i < REQUESTS; i++) {
+            final BillingRequest expected = i < purchases.size()
+                    ? purchases.get(i) : skuDetails.get(i - purchases.size());
+            assertSame(expected, provider.handled.get(i));
+        }
+    }
+
+    @Test
+    public void throttledResponseDelaysNextRequest() throws InterruptedException {
+        schedule(new ArrayList<BillingRequest>(), new ArrayList<BillingRequest>());
+        final TestProvider provider = new TestProvider(1, Status.SERVICE_UNAVAILABLE);
+
+        setup(provider);
+        assertTrue(provider.drained.await(AWAIT_TIMEOUT, TimeUnit.SECONDS));
+
+        // Next request waits for backoff timer
+        assertEquals(1, provider.handled.size());
+    }
+}
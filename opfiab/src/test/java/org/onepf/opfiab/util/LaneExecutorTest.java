@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012-2015 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.opfiab.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link LaneExecutor} keeps track of its tasks and survives shutdown.
+ */
+public class LaneExecutorTest {
+
+    private static final long AWAIT_TIMEOUT = 10L; // seconds
+
+    @Test
+    public void tasksAreCounted() throws InterruptedException {
+        final LaneExecutor lane = new LaneExecutor("test");
+        final CountDownLatch done = new CountDownLatch(1);
+        lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(AWAIT_TIMEOUT, TimeUnit.SECONDS));
+        lane.shutdown();
+        assertEquals(0, lane.getQueueSize());
+        assertEquals(1, lane.getPeakQueueSize());
+    }
+
+    @Test
+    public void taskAfterShutdownIsDropped() {
+        final LaneExecutor lane = new LaneExecutor("test");
+        lane.shutdown();
+        final AtomicBoolean executed = new AtomicBoolean();
+        lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                executed.set(true);
+            }
+        });
+        assertFalse(executed.get());
+        assertEquals(0, lane.getQueueSize());
+    }
+}